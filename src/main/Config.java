@@ -24,6 +24,17 @@ public class Config
 	public static final boolean drawOuterBoundingBox;
 	public static final int exportBorderSize;
 	public static final boolean renderRegionAsOutline;
+	public static final boolean pipelinedParsing; // Tokenize on a second thread while commands are processed
+	public static final int loaderThreads; // Number of layers loaded at once; 0 uses one thread per processor
+	public static final int stampCacheSize; // Memory budget in MB for pre-rasterised aperture stamps
+	public static final int renderThreads; // Number of tiles rendered at once; 0 uses one thread per processor
+	public static final int renderTileSize; // Width and height in pixels of the tiles a layer is split into for rendering
+	public static final boolean nativeRasteriser; // Use the built-in region and trace rasterisers rather than Java2D where available
+	public static final int maxImageSize; // Memory budget in MB for the combined image and its pyramid; larger boards are shown as a preview and exported in bands
+	public static final boolean offHeapImage; // Keep boards rendered in bands in a memory-mapped file, so exporting does not render them again
+	public static final boolean viewportRendering; // Render tiles of the view from the layers when zoomed in past the resolution of the image
+	public static final int viewTileSize; // Width and height in pixels of those tiles
+	public static final int tileCacheSize; // Memory budget in MB for those tiles
 	public static String defaultOpenPath;
 
 	/** Derived config **/
@@ -67,6 +78,17 @@ public class Config
 		drawOuterBoundingBox = booleanConfigOption("drawOuterBoundingBox", false);
 		exportBorderSize = intConfigOption("exportBorderSize", 50);
 		renderRegionAsOutline = booleanConfigOption("renderRegionAsOutline", false);
+		pipelinedParsing = booleanConfigOption("pipelinedParsing", true);
+		loaderThreads = intConfigOption("loaderThreads", 0);
+		stampCacheSize = intConfigOption("stampCacheSize", 64);
+		renderThreads = intConfigOption("renderThreads", 0);
+		renderTileSize = intConfigOption("renderTileSize", 1024);
+		nativeRasteriser = booleanConfigOption("nativeRasteriser", true);
+		maxImageSize = intConfigOption("maxImageSize", 1024);
+		offHeapImage = booleanConfigOption("offHeapImage", false);
+		viewportRendering = booleanConfigOption("viewportRendering", true);
+		viewTileSize = intConfigOption("viewTileSize", 256);
+		tileCacheSize = intConfigOption("tileCacheSize", 256);
 		defaultOpenPath = stringConfigOption("defaultOpenPath", "");
 
 		nanosToPixels = ((double) rasterDPI / 25.4) * 1E-6;
@@ -0,0 +1,114 @@
+package main;
+
+/**
+ * Single-pass decoder for coordinate words of the form X..Y..I..J..D0n. Accepts exactly the syntax of the coordinate regex it replaces: each of
+ * X, Y, I and J is optional but must appear in that order, takes a signed integer, and the word must end with D0 followed by one digit.
+ *
+ * Decoded values are left in the fields below so a single instance can be reused for every word in a file.
+ */
+class CoordinateWord
+{
+	boolean hasX, hasY, hasI, hasJ;
+	int x, y, i, j;
+
+	/** Decodes a word, returning the operation number n of its trailing D0n, or -1 if the word is not a coordinate word. **/
+	int decode(TokenArena arena, int word)
+	{
+		hasX = hasY = hasI = hasJ = false;
+
+		int length = arena.length(word);
+		int nextAxis = 0; // Axes must appear in X, Y, I, J order
+		boolean outOfRange = false; // Only reported once the word is known to be a coordinate word
+		int pos = 0;
+		while (pos < length)
+		{
+			char c = arena.charAt(word, pos);
+
+			int axis;
+			if (c == 'X')
+				axis = 0;
+			else if (c == 'Y')
+				axis = 1;
+			else if (c == 'I')
+				axis = 2;
+			else if (c == 'J')
+				axis = 3;
+			else if (c == 'D')
+			{
+				// Operation must be exactly D0n and end the word:
+				if (pos + 3 != length || arena.charAt(word, pos + 1) != '0')
+					return -1;
+
+				char n = arena.charAt(word, pos + 2);
+				if (n < '0' || n > '9')
+					return -1;
+
+				if (outOfRange)
+					throw new Exceptions.GerberCommandException("Coordinate out of range: " + arena.getString(word));
+
+				return n - '0';
+			}
+			else
+				return -1;
+
+			if (axis < nextAxis)
+				return -1;
+			nextAxis = axis + 1;
+			pos++;
+
+			boolean negative = false;
+			c = arena.charAt(word, pos);
+			if (c == '+' || c == '-')
+			{
+				negative = c == '-';
+				pos++;
+			}
+
+			int digitsStart = pos;
+			long value = 0;
+			boolean overflow = false; // Set once the magnitude passes that of Integer.MIN_VALUE, after which digits are only skipped
+			while (pos < length)
+			{
+				c = arena.charAt(word, pos);
+				if (c < '0' || c > '9')
+					break;
+
+				if (!overflow)
+				{
+					value = value * 10 + (c - '0');
+					overflow = value > Integer.MAX_VALUE + 1L;
+				}
+				pos++;
+			}
+			if (pos == digitsStart)
+				return -1;
+
+			if (negative)
+				value = -value;
+			if (overflow || value > Integer.MAX_VALUE)
+				outOfRange = true;
+
+			switch (axis)
+			{
+				case 0:
+					hasX = true;
+					x = (int) value;
+					break;
+				case 1:
+					hasY = true;
+					y = (int) value;
+					break;
+				case 2:
+					hasI = true;
+					i = (int) value;
+					break;
+				default:
+					hasJ = true;
+					j = (int) value;
+					break;
+			}
+		}
+
+		return -1; // No operation found
+	}
+}
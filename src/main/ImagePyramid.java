@@ -0,0 +1,137 @@
+package main;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Successively halved copies of the combined image, for drawing it zoomed out. Each level is a 2x2 box filter of the one before, down to a
+ * few hundred pixels across. The canvas draws from the level whose pixels are nearest in size to, but not larger than, a screen pixel, which
+ * Java2D samples only within the clip, so drawing costs about the same whatever the size of the board. Levels are built in the background after the
+ * image is rendered; until one is ready, the finest level available is used instead.
+ */
+public class ImagePyramid
+{
+	private static final int MIN_LEVEL_SIZE = 256; // No level is made once both sides are this small
+
+	private final BufferedImage[] levels;
+	private final int baseScale; // Board pixels per pixel of the first level
+
+	/**
+	 * Starts building the levels above an INT_RGB or USHORT_555_RGB image, each pixel of which covers baseScale board pixels across, on the
+	 * executor. levelBuilt is run after each level is ready.
+	 */
+	public ImagePyramid(BufferedImage image, int baseScale, Executor executor, Runnable levelBuilt)
+	{
+		this.baseScale = baseScale;
+
+		int numLevels = 1;
+		for (int size = Math.max(image.getWidth(), image.getHeight()); size > MIN_LEVEL_SIZE; size = (size + 1) / 2)
+			numLevels++;
+		levels = new BufferedImage[numLevels];
+		levels[0] = image;
+
+		CompletableFuture.runAsync(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				for (int level = 1; level < levels.length; level++)
+				{
+					BufferedImage halved = halve(levels[level - 1]);
+					synchronized (levels)
+					{
+						levels[level] = halved;
+					}
+					levelBuilt.run();
+				}
+			}
+		}, executor);
+	}
+
+	/** Returns the memory taken by the levels above an image of the given size, which are INT_RGB whatever the image's type. **/
+	public static long levelBytes(int width, int height)
+	{
+		long bytes = 0;
+		while (Math.max(width, height) > MIN_LEVEL_SIZE)
+		{
+			width = (width + 1) / 2;
+			height = (height + 1) / 2;
+			bytes += (long) width * height * 4;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Draws the image at the size of the first level with its top left at the origin, into graphics already scaled by the given number of
+	 * screen pixels per board pixel.
+	 */
+	public void draw(Graphics2D g, double scale)
+	{
+		// The coarsest level with no more than one pixel per screen pixel:
+		int level = 0;
+		BufferedImage image = levels[0];
+		synchronized (levels)
+		{
+			while (level + 1 < levels.length && levels[level + 1] != null && ((long) baseScale << (level + 1)) * scale <= 1)
+				image = levels[++level];
+		}
+		int levelScale = baseScale << level; // Board pixels per pixel of the level
+
+		// Java2D only samples the part within the clip. Drawing the level whole, rather than a sub-rectangle, keeps its pixels landing in the same
+		// place whatever the clip, so areas drawn separately, as when panning, line up.
+		g.drawImage(image, 0, 0, image.getWidth() * levelScale, image.getHeight() * levelScale, null);
+	}
+
+	/** Averages each 2x2 block of pixels; an odd last row or column is averaged with itself. **/
+	private static BufferedImage halve(BufferedImage source)
+	{
+		int width = source.getWidth(), height = source.getHeight();
+		int halfWidth = (width + 1) / 2, halfHeight = (height + 1) / 2;
+		BufferedImage half = new BufferedImage(halfWidth, halfHeight, BufferedImage.TYPE_INT_RGB);
+		int[] dst = ((DataBufferInt) half.getRaster().getDataBuffer()).getData();
+
+		int[] intSrc = source.getType() == BufferedImage.TYPE_INT_RGB ? ((DataBufferInt) source.getRaster().getDataBuffer()).getData() : null;
+		short[] shortSrc = source.getType() == BufferedImage.TYPE_USHORT_555_RGB ? ((DataBufferUShort) source.getRaster().getDataBuffer()).getData() : null;
+		if (intSrc == null && shortSrc == null)
+			throw new IllegalArgumentException("Only TYPE_INT_RGB and TYPE_USHORT_555_RGB images can be halved.");
+
+		int[] row0 = new int[width], row1 = new int[width];
+		for (int y = 0; y < halfHeight; y++)
+		{
+			int top = 2 * y, bottom = Math.min(2 * y + 1, height - 1);
+			if (intSrc != null)
+			{
+				System.arraycopy(intSrc, top * width, row0, 0, width);
+				System.arraycopy(intSrc, bottom * width, row1, 0, width);
+			}
+			else
+			{
+				for (int x = 0; x < width; x++)
+				{
+					row0[x] = expand555(shortSrc[top * width + x]);
+					row1[x] = expand555(shortSrc[bottom * width + x]);
+				}
+			}
+
+			for (int x = 0; x < halfWidth; x++)
+			{
+				int left = 2 * x, right = Math.min(2 * x + 1, width - 1);
+				int a = row0[left], b = row0[right], c = row1[left], d = row1[right];
+				int red = ((a >>> 16 & 0xFF) + (b >>> 16 & 0xFF) + (c >>> 16 & 0xFF) + (d >>> 16 & 0xFF) + 2) >>> 2;
+				int green = ((a >>> 8 & 0xFF) + (b >>> 8 & 0xFF) + (c >>> 8 & 0xFF) + (d >>> 8 & 0xFF) + 2) >>> 2;
+				int blue = ((a & 0xFF) + (b & 0xFF) + (c & 0xFF) + (d & 0xFF) + 2) >>> 2;
+				dst[y * halfWidth + x] = red << 16 | green << 8 | blue;
+			}
+		}
+		return half;
+	}
+
+	private static int expand555(int rgb)
+	{
+		return PngStreamWriter.expand5(rgb >>> 10) << 16 | PngStreamWriter.expand5(rgb >>> 5) << 8 | PngStreamWriter.expand5(rgb);
+	}
+}
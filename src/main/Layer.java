@@ -10,12 +10,18 @@ import java.awt.geom.Area;
 import java.awt.geom.Line2D;
 import java.awt.geom.Path2D;
 import java.awt.geom.Rectangle2D;
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.InputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -24,9 +30,11 @@ import main.Layer.Modifiers.Polarity;
 import main.Utils.Timer;
 import main.graphicalobjects.Aperture;
 import main.graphicalobjects.Aperture.Custom;
-import main.graphicalobjects.Interpolation;
+import main.graphicalobjects.Flash;
 import main.graphicalobjects.Region;
 import main.graphicalobjects.Renderable;
+import main.graphicalobjects.TraceBuffer;
+import main.graphicalobjects.TraceRun;
 import main.math.Matrix2D;
 import main.math.Vector2i;
 
@@ -38,23 +46,29 @@ public class Layer
 	private final Pattern formatSpecificationPattern = Pattern.compile("^FS(LA)X([0-9])([0-9])Y([0-9])([0-9])$");
 	private final Pattern apertureDefinitionPattern = Pattern.compile("^ADD(\\d\\d+)([A-Z0-9]+)[,]?([+-]?(?:[0-9]*[.])?[0-9]+)?(?:X([+-]?(?:[0-9]*[.])?[0-9]+))?(?:X([+-]?(?:[0-9]*[.])?[0-9]+))?(?:X([+-]?(?:[0-9]*[.])?[0-9]+))?$");
 	private final Pattern apertureMacroPattern = Pattern.compile("^AM([A-Z0-9]+)$");;
-	private final Pattern coordinatePattern = Pattern.compile("^(?:X([+-]?\\d+))?(?:Y([+-]?\\d+))?(?:I([+-]?\\d+))?(?:J([+-]?\\d+))?(D0\\d)$");
 	private final Pattern operationPattern = Pattern.compile("^D(\\d+)$");
 	private final Pattern LRPattern = Pattern.compile("^LR([+-]?(?:[0-9]*[.])?[0-9]+)$");
 	private final Pattern LSPattern = Pattern.compile("^LS([+-]?(?:[0-9]*[.])?[0-9]+)$");
 
+	private final CoordinateWord coordinate = new CoordinateWord();
+
 	/** State variables: */
 	private Vector2i currentPoint = new Vector2i(0, 0);
 	private Aperture selectedAperture = null;
 	private ArrayList<Shape> currentRegion = null;
 	private boolean inRegion = false;
 	private InterpolationMode interpolationMode = InterpolationMode.LINEAR; // FIXME some gerber files seem to assume this is the default?
-	private Modifiers globalModifiers = new Modifiers();
+	private Modifiers globalModifiers = Modifiers.DEFAULT;
 	private UnitType units = UnitType.NONE;
 	private int gerberUnitsToNanosMultiplier;
 	private boolean reachedEndOfGerber = false;
 
 	public ArrayList<Renderable> objects = new ArrayList<>();
+	private final TraceBuffer traces = new TraceBuffer();
+	private TraceRun openTraceRun = null; // Run that new traces are appended to, while it is still the last object
+
+	private static final int COMMAND_BATCH_SIZE = 4096;
+	private static final int PIPELINE_DEPTH = 4; // Number of batches in flight when parsing is pipelined
 	
 	private enum UnitType
 	{
@@ -87,32 +101,36 @@ public class Layer
 
 	public Layer(File file)
 	{
-		Timer.tic();
-		ArrayList<Command> commands = parseGerberFile(file);
-		log("Parsed " + file.getName() + " in " + String.format("%.2fs.", Timer.toc() * 0.001) + "\n");
+		registerCommandHandlers();
 
 		Timer.tic();
-		for (Command command : commands)
-			processCommand(command);		
+		if (Config.pipelinedParsing)
+			parseAndProcessPipelined(file);
+		else
+			parseAndProcess(file);
 		if (!reachedEndOfGerber)
 			throw new RuntimeException("No end of file found. Is this a valid Gerber file?");
-		log("Processed " + file.getName() + " in " + String.format("%.2fs.", Timer.toc() * 0.001) + "\n");
+		log("Parsed and processed " + file.getName() + " in " + String.format("%.2fs.", Timer.toc() * 0.001) + "\n");
 	}
 
-	public static class Modifiers
+	/**
+	 * Graphics state set by the LP, LM, LR and LS commands. Instances are immutable and interned, so every object drawn under the same state shares
+	 * one instance and a state change can be detected by identity.
+	 */
+	public static final class Modifiers
 	{
-		public Polarity polarity = Polarity.DARK;
-		public Mirroring mirroring = Mirroring.NONE;
-		public double rotation = 0.0;
-		public double scaling = 0.0;
+		private static final ConcurrentHashMap<Modifiers, Modifiers> interned = new ConcurrentHashMap<>();
 
-		// FIXME add mirroring, rotation and scaling functionality
+		public static final Modifiers DEFAULT = of(Polarity.DARK, Mirroring.NONE, 0.0, 0.0);
 
-		public Modifiers()
-		{
-		}
+		public final Polarity polarity;
+		public final Mirroring mirroring;
+		public final double rotation;
+		public final double scaling;
 
-		public Modifiers(Polarity p, Mirroring m, double r, double s)
+		// FIXME add mirroring, rotation and scaling functionality
+
+		private Modifiers(Polarity p, Mirroring m, double r, double s)
 		{
 			polarity = p;
 			mirroring = m;
@@ -120,6 +138,14 @@ public class Layer
 			scaling = s;
 		}
 
+		/** Returns the shared instance for the given state. **/
+		public static Modifiers of(Polarity p, Mirroring m, double r, double s)
+		{
+			Modifiers modifiers = new Modifiers(p, m, r, s);
+			Modifiers existing = interned.putIfAbsent(modifiers, modifiers);
+			return existing != null ? existing : modifiers;
+		}
+
 		public enum Polarity
 		{
 			CLEAR, DARK
@@ -130,14 +156,39 @@ public class Layer
 			NONE, X, Y, XY
 		}
 
-		public Modifiers clone()
+		public Modifiers withPolarity(Polarity p)
+		{
+			return p == polarity ? this : of(p, mirroring, rotation, scaling);
+		}
+
+		public Modifiers withMirroring(Mirroring m)
+		{
+			return m == mirroring ? this : of(polarity, m, rotation, scaling);
+		}
+
+		public Modifiers withRotation(double r)
+		{
+			return of(polarity, mirroring, r, scaling);
+		}
+
+		public Modifiers withScaling(double s)
+		{
+			return of(polarity, mirroring, rotation, s);
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof Modifiers))
+				return false;
+			Modifiers m = (Modifiers) o;
+			return m.polarity == polarity && m.mirroring == mirroring && Double.compare(m.rotation, rotation) == 0 && Double.compare(m.scaling, scaling) == 0;
+		}
+
+		@Override
+		public int hashCode()
 		{
-			Modifiers newModifiers = new Modifiers();
-			newModifiers.polarity = polarity;
-			newModifiers.mirroring = mirroring;
-			newModifiers.rotation = rotation;
-			newModifiers.scaling = scaling;
-			return newModifiers;
+			return Objects.hash(polarity, mirroring, rotation, scaling);
 		}
 	}
 
@@ -148,44 +199,106 @@ public class Layer
 
 	private class Command
 	{
-		ArrayList<String> words = new ArrayList<>();
+		TokenArena arena;
+		int firstWord;
+		int numWords;
 
-		Command(String word)
+		Command(TokenArena arena, int word)
 		{
-			words.add(word);
+			this.arena = arena;
+			this.firstWord = word;
+			this.numWords = 1;
 		}
 
-		private Command()
+		private Command(TokenArena arena)
 		{
+			this.arena = arena;
+		}
+
+		String getWord(int index)
+		{
+			return arena.getString(firstWord + index);
+		}
+
+		/** Returns a character of the command word, or 0 if the word is shorter than that. **/
+		char charAt(int index)
+		{
+			return arena.charAt(firstWord, index);
+		}
+
+		/** Returns the two digit number following the letter of a code such as G36 or M02, or -1 if the command word doesn't start with one. **/
+		int getCode()
+		{
+			char tens = charAt(1);
+			char units = charAt(2);
+			if (tens < '0' || tens > '9' || units < '0' || units > '9')
+				return -1;
+			return (tens - '0') * 10 + (units - '0');
 		}
 
 		@Override
 		public String toString()
 		{
-			return "Command[" + words.get(0) + "]";
+			return "Command[" + getWord(0) + "]";
 		}
 	}
 
 	private class ExtendedCommand extends Command
 	{
-		void addWord(String word)
+		ExtendedCommand(TokenArena arena)
 		{
-			words.add(word);
+			super(arena);
+		}
+
+		void addWord(int word)
+		{
+			if (numWords == 0)
+				firstWord = word;
+			numWords++;
 		}
 
 		@Override
 		public String toString()
 		{
-			String s = "ExtCmd[" + words.get(0) + "]:";
-			for (int i = 1; i < words.size(); i++)
+			String s = "ExtCmd[" + getWord(0) + "]:";
+			for (int i = 1; i < numWords; i++)
 			{
 				s += "\r\n\t";
-				s += words.get(i);
+				s += getWord(i);
 			}
 			return s;
 		}
 	}
 
+	/**
+	 * A bounded group of parsed commands along with the arena holding their words. Commands are handed from the tokenizer to processCommand a batch
+	 * at a time, and batches are recycled once processed, so memory use does not grow with file size.
+	 */
+	private class CommandBatch
+	{
+		final TokenArena arena;
+		final ArrayList<Command> commands = new ArrayList<>(COMMAND_BATCH_SIZE);
+		boolean endOfFile = false;
+
+		CommandBatch(ByteBuffer source)
+		{
+			arena = new TokenArena(source);
+		}
+
+		void clear()
+		{
+			arena.clear();
+			commands.clear();
+			endOfFile = false;
+		}
+	}
+
+	/** Receives a full batch from the tokenizer and returns an empty batch for it to carry on filling. **/
+	private interface BatchSink
+	{
+		CommandBatch accept(CommandBatch batch) throws InterruptedException;
+	}
+
 	private enum ParserState
 	{
 		NONE, IN_EXT_CMD, IN_WORD_CMD
@@ -207,42 +320,65 @@ public class Layer
 	
 	Renderable minXObj, minYObj, maxXObj, maxYObj;
 	
-	public Rectangle2D calculateBounds() // TODO include line stroke width
+	private Rectangle2D bounds = null;
+	private SpatialIndex index = null;
+
+	/** Returns the bounds of all dark objects in the layer, calculating them the first time this is called. **/
+	public synchronized Rectangle2D getBounds()
+	{
+		if (bounds == null)
+		{
+			SpatialIndex index = getIndex();
+			Timer.tic();
+			bounds = calculateBounds(index);
+			log(String.format("Bounds calc time: %.3fs", (Timer.toc() * 0.001)));
+		}
+		return bounds;
+	}
+
+	/** Returns the spatial index of the layer's objects, building it the first time this is called. **/
+	public synchronized SpatialIndex getIndex()
+	{
+		if (index == null)
+		{
+			Timer.tic();
+			index = new SpatialIndex(objects);
+			log(String.format("Index build time: %.3fs", (Timer.toc() * 0.001)));
+		}
+		return index;
+	}
+
+	private Rectangle2D calculateBounds(SpatialIndex index) // TODO include line stroke width
 	{
 		double minX = Double.MAX_VALUE;
 		double minY = Double.MAX_VALUE;
 		double maxX = Double.MIN_VALUE;
 		double maxY = Double.MIN_VALUE;
-		
 
-		
-		for (Renderable r : objects)
+		for (int i = 0; i < objects.size(); i++)
 		{
-//			if (!(r instanceof Aperture))
-//				continue; // FIXME remove this please
-			
+			Renderable r = objects.get(i);
 			if (r.getModifiers().polarity == Polarity.CLEAR)
 				continue;
-			
-			Rectangle2D localBounds = r.getBounds();
-			if (localBounds.getMinX() < minX)
+
+			if (index.getMinX(i) < minX)
 			{
-				minX = localBounds.getMinX();
+				minX = index.getMinX(i);
 				minXObj = r;
 			}
-			if (localBounds.getMinY() < minY)
+			if (index.getMinY(i) < minY)
 			{
-				minY = localBounds.getMinY();
+				minY = index.getMinY(i);
 				minYObj = r;
 			}
-			if (localBounds.getMaxX() > maxX)
+			if (index.getMaxX(i) > maxX)
 			{
-				maxX = localBounds.getMaxX();
+				maxX = index.getMaxX(i);
 				maxXObj = r;
 			}
-			if (localBounds.getMaxY() > maxY)
+			if (index.getMaxY(i) > maxY)
 			{
-				maxY = localBounds.getMaxY();
+				maxY = index.getMaxY(i);
 				maxYObj = r;
 			}
 		}
@@ -252,10 +388,10 @@ public class Layer
 
 	private void addApertureTemplate(ExtendedCommand cmd, String ID)
 	{
-		Custom macroAperture = new Custom(globalModifiers.clone());
-		for (int wordIndex = 1; wordIndex < cmd.words.size(); wordIndex++)
+		Custom macroAperture = new Custom(globalModifiers);
+		for (int wordIndex = 1; wordIndex < cmd.numWords; wordIndex++)
 		{
-			String word = cmd.words.get(wordIndex);
+			String word = cmd.getWord(wordIndex);
 
 			if (word.contains("$"))
 			{
@@ -409,152 +545,314 @@ public class Layer
 		if (selectedAperture == null)
 			throw new RuntimeException("Flash requested but no aperture selected.");
 
-		Aperture a = selectedAperture.clone();
-		a.offset.x = currentPoint.x;
-		a.offset.y = currentPoint.y;
-		objects.add(a);
+		objects.add(new Flash(selectedAperture, position.x, position.y, globalModifiers));
 	}
 
-	private boolean isCoordinate(String word)
+	/** Appends a trace from the trace buffer to the object list, extending the last run if it has the same modifiers and room to spare. **/
+	private void addTrace(int trace)
 	{
-		return coordinatePattern.matcher(word).matches();
+		if (openTraceRun == null || objects.get(objects.size() - 1) != openTraceRun || openTraceRun.getModifiers() != globalModifiers || openTraceRun.isFull())
+		{
+			openTraceRun = new TraceRun(traces, trace, globalModifiers);
+			objects.add(openTraceRun);
+		}
+		openTraceRun.extendTo(trace + 1);
 	}
-	
+
 	private void endOfGerber()
 	{
 		reachedEndOfGerber = true;
 	}
 
-	private void processCommand(Command command)
+	/** Processes one family of commands. Handlers are looked up by the first two characters of the command word. **/
+	private interface CommandHandler
 	{
-		if (reachedEndOfGerber)
-			throw new RuntimeException("Commands found after end of Gerber.");
-		
-		String commandWord = command.words.get(0);
-		if (commandWord.startsWith("G04")) // Comment
-		{
-			// Ignore comments
-		}
-		else if (commandWord.startsWith("MO")) // Mode
+		void process(Command command);
+	}
+
+	private final CommandHandler[] commandHandlers = new CommandHandler[128 * 128];
+	private final CommandHandler deprecatedCommands = new DeprecatedCommandHandler();
+	private final CommandHandler unsupportedCommands = new UnsupportedCommandHandler();
+
+	/** Registers a handler for all command words starting with the given one or two character prefix. Two character prefixes take precedence. **/
+	private void registerCommandHandler(String prefix, CommandHandler handler)
+	{
+		if (prefix.length() == 1)
 		{
-			if (commandWord.equals("MOMM"))
+			for (int c = 0; c < 128; c++)
 			{
-				setUnitsMM();
+				if (commandHandlers[(prefix.charAt(0) << 7) | c] == null)
+					commandHandlers[(prefix.charAt(0) << 7) | c] = handler;
 			}
-			else if (commandWord.equals("MOIN"))
-			{
-				setUnitsIN();
-			}
-			else
-				throw new RuntimeException("Unknown mode requested: " + commandWord);
 		}
-		else if (commandWord.startsWith("FS")) // Format specification
-		{
-			Matcher m = formatSpecificationPattern.matcher(commandWord);
-			if (!m.matches())
-				throw new RuntimeException("Illegal format specification: " + commandWord);
-
-			if (!m.group(1).equals("LA"))
-				throw new RuntimeException("Unsupported format specification used: " + commandWord);
+		else
+			commandHandlers[(prefix.charAt(0) << 7) | prefix.charAt(1)] = handler;
+	}
 
-			int xInteger = Integer.parseInt(m.group(2));
-			int xDecimal = Integer.parseInt(m.group(3));
-			int yInteger = Integer.parseInt(m.group(4));
-			int yDecimal = Integer.parseInt(m.group(5));
+	private void registerCommandHandlers()
+	{
+		CommandHandler formatCommands = new FormatCommandHandler();
+		registerCommandHandler("MO", formatCommands);
+		registerCommandHandler("FS", formatCommands);
+
+		CommandHandler apertureCommands = new ApertureCommandHandler();
+		registerCommandHandler("AD", apertureCommands);
+		registerCommandHandler("AM", apertureCommands);
+
+		CommandHandler layerModifiers = new LayerModifierHandler();
+		registerCommandHandler("LP", layerModifiers);
+		registerCommandHandler("LM", layerModifiers);
+		registerCommandHandler("LR", layerModifiers);
+		registerCommandHandler("LS", layerModifiers);
+
+		CommandHandler attributes = new AttributeHandler();
+		registerCommandHandler("TF", attributes);
+		registerCommandHandler("TA", attributes);
+		registerCommandHandler("TO", attributes);
+		registerCommandHandler("TD", attributes);
+
+		registerCommandHandler("AB", unsupportedCommands);
+		registerCommandHandler("SR", unsupportedCommands);
+
+		for (String prefix : new String[] { "IP", "AS", "IR", "MI", "OF", "SF", "IN", "LN" })
+			registerCommandHandler(prefix, deprecatedCommands);
+
+		// Single character prefixes last, so they only fill the gaps left by the above:
+		registerCommandHandler("G", new GCodeHandler());
+		registerCommandHandler("M", new MCodeHandler());
+		registerCommandHandler("D", new DCodeHandler());
+
+		CommandHandler coordinates = new CoordinateHandler();
+		registerCommandHandler("X", coordinates);
+		registerCommandHandler("Y", coordinates);
+		registerCommandHandler("I", coordinates);
+		registerCommandHandler("J", coordinates);
+	}
 
-			if ((xInteger != yInteger) || (xDecimal != yDecimal))
-				throw new RuntimeException("Unsupported format specification: mismatching x and y format.");
+	private void processCommand(Command command)
+	{
+		if (reachedEndOfGerber)
+			throw new RuntimeException("Commands found after end of Gerber.");
 
-			gerberUnitsToNanosMultiplier = (int) Math.pow(10, 6 - xDecimal);
+		char first = command.charAt(0);
+		char second = command.charAt(1);
+		CommandHandler handler = null;
+		if (first < 128 && second < 128)
+			handler = commandHandlers[(first << 7) | second];
 
-			log(String.format("Set format X%d.%d Y%d.%d", xInteger, xDecimal, yInteger, yDecimal));
-		}
-		else if (commandWord.startsWith("AD")) // Aperture define
-		{
-			Matcher m = apertureDefinitionPattern.matcher(commandWord);
-			if (!m.matches())
-				throw new RuntimeException("Illegal aperture definition: " + commandWord);
+		if (handler == null)
+			throw new Exceptions.UnsupportedCommandException(command.getWord(0));
 
-			int numArgs = Utils.countMatchingGroups(m) - 3;
+		handler.process(command);
+	}
 
-			String id = "D" + m.group(1);
-			log("Aperture " + id + " defined.");
-			double args[] = new double[numArgs];
-			int argsconv[] = new int[numArgs];
-			for (int i = 0; i < numArgs; i++)
+	private class GCodeHandler implements CommandHandler
+	{
+		@Override
+		public void process(Command command)
+		{
+			switch (command.getCode())
 			{
-				String group = m.group(i + 3);
-				args[i] = Double.parseDouble(group);
-				argsconv[i] = (int) convertUnits(args[i]);
+				case 4: // Comment
+					// Ignore comments
+					break;
+				case 1:
+					interpolationMode = InterpolationMode.LINEAR;
+					break;
+				case 2:
+					interpolationMode = InterpolationMode.CIRC_CW;
+					break;
+				case 3:
+					interpolationMode = InterpolationMode.CIRC_CCW;
+					break;
+				case 75:
+					// Ignored
+					break;
+				case 36:
+					startRegion();
+					break;
+				case 37:
+					endRegion();
+					break;
+				case 54:
+				case 55:
+				case 70:
+				case 71:
+				case 74:
+				case 90:
+					deprecatedCommands.process(command);
+					break;
+				case 91: // Set coordinate format incremental
+					unsupportedCommands.process(command);
+					break;
+				default:
+					throw new Exceptions.UnsupportedCommandException(command.getWord(0));
 			}
+		}
+	}
 
-			Aperture aperture = null;
-
-			String type = m.group(2);
-			if (type.equals("C"))
+	private class MCodeHandler implements CommandHandler
+	{
+		@Override
+		public void process(Command command)
+		{
+			switch (command.getCode())
 			{
-				if (numArgs == 1)
-					aperture = new Aperture.Circle(globalModifiers.clone(), argsconv[0]);
-				else if (numArgs == 2)
-					aperture = new Aperture.Circle(globalModifiers.clone(), argsconv[0], argsconv[1]);
-				else
-					throw new RuntimeException("Unexpected number of arguments for circle aperture.");
+				case 2:
+					endOfGerber();
+					break;
+				case 0:
+				case 1:
+					deprecatedCommands.process(command);
+					break;
+				default:
+					throw new Exceptions.UnsupportedCommandException(command.getWord(0));
 			}
-			else if (type.equals("R"))
+		}
+	}
+
+	private class FormatCommandHandler implements CommandHandler
+	{
+		@Override
+		public void process(Command command)
+		{
+			String commandWord = command.getWord(0);
+			if (commandWord.startsWith("MO")) // Mode
 			{
-				if (numArgs == 2)
-					aperture = new Aperture.Rectangle(globalModifiers.clone(), argsconv[0], argsconv[1]);
-				else if (numArgs == 3)
-					aperture = new Aperture.Rectangle(globalModifiers.clone(), argsconv[0], argsconv[1], argsconv[2]);
+				if (commandWord.equals("MOMM"))
+				{
+					setUnitsMM();
+				}
+				else if (commandWord.equals("MOIN"))
+				{
+					setUnitsIN();
+				}
 				else
-					throw new RuntimeException("Unexpected number of arguments for rectangle aperture.");
+					throw new RuntimeException("Unknown mode requested: " + commandWord);
 			}
-			else if (type.equals("O"))
+			else // Format specification
 			{
-				if (numArgs == 2)
-					aperture = new Aperture.ObRound(globalModifiers.clone(), argsconv[0], argsconv[1]);
-				else if (numArgs == 3)
-					aperture = new Aperture.ObRound(globalModifiers.clone(), argsconv[0], argsconv[1], argsconv[2]);
-				else
-					throw new RuntimeException("Unexpected number of arguments for rectangle aperture.");
+				Matcher m = formatSpecificationPattern.matcher(commandWord);
+				if (!m.matches())
+					throw new RuntimeException("Illegal format specification: " + commandWord);
+
+				if (!m.group(1).equals("LA"))
+					throw new RuntimeException("Unsupported format specification used: " + commandWord);
+
+				int xInteger = Integer.parseInt(m.group(2));
+				int xDecimal = Integer.parseInt(m.group(3));
+				int yInteger = Integer.parseInt(m.group(4));
+				int yDecimal = Integer.parseInt(m.group(5));
+
+				if ((xInteger != yInteger) || (xDecimal != yDecimal))
+					throw new RuntimeException("Unsupported format specification: mismatching x and y format.");
+
+				gerberUnitsToNanosMultiplier = (int) Math.pow(10, 6 - xDecimal);
+
+				log(String.format("Set format X%d.%d Y%d.%d", xInteger, xDecimal, yInteger, yDecimal));
 			}
-			else if (type.equals("P"))
+		}
+	}
+
+	private class ApertureCommandHandler implements CommandHandler
+	{
+		@Override
+		public void process(Command command)
+		{
+			String commandWord = command.getWord(0);
+			if (commandWord.startsWith("AD")) // Aperture define
 			{
-				if (numArgs == 2)
-					aperture = new Aperture.Polygon(globalModifiers.clone(), argsconv[0], (int) args[1]);
-				else if (numArgs == 3)
-					aperture = new Aperture.Polygon(globalModifiers.clone(), argsconv[0], (int) args[1], Utils.toRads(args[2]));
-				else if (numArgs == 4)
-					aperture = new Aperture.Polygon(globalModifiers.clone(), argsconv[0], (int) args[1], Utils.toRads(args[2]), argsconv[3]);
+				Matcher m = apertureDefinitionPattern.matcher(commandWord);
+				if (!m.matches())
+					throw new RuntimeException("Illegal aperture definition: " + commandWord);
+
+				int numArgs = Utils.countMatchingGroups(m) - 3;
+
+				String id = "D" + m.group(1);
+				log("Aperture " + id + " defined.");
+				double args[] = new double[numArgs];
+				int argsconv[] = new int[numArgs];
+				for (int i = 0; i < numArgs; i++)
+				{
+					String group = m.group(i + 3);
+					args[i] = Double.parseDouble(group);
+					argsconv[i] = (int) convertUnits(args[i]);
+				}
+
+				Aperture aperture = null;
+
+				String type = m.group(2);
+				if (type.equals("C"))
+				{
+					if (numArgs == 1)
+						aperture = new Aperture.Circle(globalModifiers, argsconv[0]);
+					else if (numArgs == 2)
+						aperture = new Aperture.Circle(globalModifiers, argsconv[0], argsconv[1]);
+					else
+						throw new RuntimeException("Unexpected number of arguments for circle aperture.");
+				}
+				else if (type.equals("R"))
+				{
+					if (numArgs == 2)
+						aperture = new Aperture.Rectangle(globalModifiers, argsconv[0], argsconv[1]);
+					else if (numArgs == 3)
+						aperture = new Aperture.Rectangle(globalModifiers, argsconv[0], argsconv[1], argsconv[2]);
+					else
+						throw new RuntimeException("Unexpected number of arguments for rectangle aperture.");
+				}
+				else if (type.equals("O"))
+				{
+					if (numArgs == 2)
+						aperture = new Aperture.ObRound(globalModifiers, argsconv[0], argsconv[1]);
+					else if (numArgs == 3)
+						aperture = new Aperture.ObRound(globalModifiers, argsconv[0], argsconv[1], argsconv[2]);
+					else
+						throw new RuntimeException("Unexpected number of arguments for rectangle aperture.");
+				}
+				else if (type.equals("P"))
+				{
+					if (numArgs == 2)
+						aperture = new Aperture.Polygon(globalModifiers, argsconv[0], (int) args[1]);
+					else if (numArgs == 3)
+						aperture = new Aperture.Polygon(globalModifiers, argsconv[0], (int) args[1], Utils.toRads(args[2]));
+					else if (numArgs == 4)
+						aperture = new Aperture.Polygon(globalModifiers, argsconv[0], (int) args[1], Utils.toRads(args[2]), argsconv[3]);
+					else
+						throw new RuntimeException("Unexpected number of arguments for rectangle aperture.");
+				}
 				else
-					throw new RuntimeException("Unexpected number of arguments for rectangle aperture.");
+				{
+					aperture = apertureTemplateDictionary.get(type);
+					if (aperture == null)
+						throw new RuntimeException("Aperture template " + type + " requested but not found.");
+				}
+
+				apertureDictionary.put(id, aperture);
 			}
-			else
+			else // Aperture macro
 			{
-				aperture = apertureTemplateDictionary.get(type);
-				if (aperture == null)
-					throw new RuntimeException("Aperture template " + type + " requested but not found.");
-			}
+				if (!(command instanceof ExtendedCommand))
+					throw new RuntimeException("Illegal AM command found: not extended.");
 
-			apertureDictionary.put(id, aperture);
-		}
-		else if (commandWord.startsWith("AM")) // Aperture macro
-		{
-			if (!(command instanceof ExtendedCommand))
-				throw new RuntimeException("Illegal AM command found: not extended.");
+				ExtendedCommand extCmd = (ExtendedCommand) command;
 
-			ExtendedCommand extCmd = (ExtendedCommand) command;
+				Matcher m = apertureMacroPattern.matcher(commandWord);
+				if (!m.matches())
+					throw new RuntimeException("Illegal aperture macro: " + commandWord);
 
-			Matcher m = apertureMacroPattern.matcher(commandWord);
-			if (!m.matches())
-				throw new RuntimeException("Illegal aperture macro: " + commandWord);
-
-			String apertureTemplateID = m.group(1);
+				String apertureTemplateID = m.group(1);
 
-			addApertureTemplate(extCmd, apertureTemplateID);
+				addApertureTemplate(extCmd, apertureTemplateID);
+			}
 		}
-		else if (commandWord.startsWith("D")) // Operation
+	}
+
+	private class DCodeHandler implements CommandHandler
+	{
+		@Override
+		public void process(Command command) // Operation
 		{
+			String commandWord = command.getWord(0);
 			Matcher m = operationPattern.matcher(commandWord);
 			if (!m.matches())
 				throw new Exceptions.GerberCommandException("Invalid syntax: " + commandWord);
@@ -610,7 +908,7 @@ public class Layer
 							}
 						}
 
-						objects.add(new Region(p, globalModifiers.clone()));
+						objects.add(new Region(p, globalModifiers));
 
 						currentRegion = null;
 
@@ -637,10 +935,11 @@ public class Layer
 							if (!(selectedAperture instanceof Aperture.Circle))
 								throw new RuntimeException("Interpolation requested but selected aperture is not a circle.");
 
-							Integer strokeWidth = ((Aperture.Circle) selectedAperture).diameter;
+							int strokeWidth = ((Aperture.Circle) selectedAperture).diameter;
 
-							Line2D l = new Line2D.Double(Utils.toPixels(currentPoint.x), Utils.toPixels(currentPoint.y), Utils.toPixels(currentPoint.x), Utils.toPixels(currentPoint.y));
-							objects.add(new Interpolation(globalModifiers.clone(), strokeWidth, l));
+							int x = (int) Utils.toPixels(currentPoint.x);
+							int y = (int) Utils.toPixels(currentPoint.y);
+							addTrace(traces.addLine(x, y, x, y, strokeWidth));
 
 							break;
 						case 2: // Move
@@ -655,175 +954,25 @@ public class Layer
 				}
 			}
 		}
-		else if (commandWord.startsWith("G01"))
-		{
-			interpolationMode = InterpolationMode.LINEAR;
-		}
-		else if (commandWord.startsWith("G02"))
-		{
-			interpolationMode = InterpolationMode.CIRC_CW;
-		}
-		else if (commandWord.startsWith("G03"))
-		{
-			interpolationMode = InterpolationMode.CIRC_CCW;
-		}
-		else if (commandWord.startsWith("G75"))
-		{
-			// Ignored
-		}
-		else if (commandWord.startsWith("LP"))
-		{
-			if (commandWord.equals("LPC"))
-			{
-				globalModifiers.polarity = Polarity.CLEAR;
-			}
-			else if (commandWord.equals("LPD"))
-			{
-				globalModifiers.polarity = Polarity.DARK;
-			}
-			else
-				throw new RuntimeException("Invalid LP command: " + commandWord);
-		}
-		else if (commandWord.startsWith("LM"))
-		{
-			if (commandWord.equals("LMN"))
-			{
-				globalModifiers.mirroring = Mirroring.NONE;
-			}
-			else if (commandWord.equals("LMX"))
-			{
-				globalModifiers.mirroring = Mirroring.X;
-			}
-			else if (commandWord.equals("LMY"))
-			{
-				globalModifiers.mirroring = Mirroring.Y;
-			}
-			else if (commandWord.equals("LMXY"))
-			{
-				globalModifiers.mirroring = Mirroring.XY;
-			}
-			else
-				throw new RuntimeException("Invalid LM command: " + commandWord);
-		}
-		else if (commandWord.startsWith("LR"))
-		{
-			Matcher m = LRPattern.matcher(commandWord);
-			if (!m.matches())
-				throw new RuntimeException("Invalid LR command: " + commandWord);
-
-			Double rotation_deg = Double.parseDouble(m.group(1));
-			globalModifiers.rotation = Utils.toRads(rotation_deg);
-		}
-		else if (commandWord.startsWith("LS"))
-		{
-			Matcher m = LSPattern.matcher(commandWord);
-			if (!m.matches())
-				throw new RuntimeException("Invalid LS command: " + commandWord);
-
-			Double scale = Double.parseDouble(m.group(1));
-			globalModifiers.scaling = scale;
-		}
-		else if (commandWord.startsWith("G36"))
-		{
-			inRegion = true;
-			currentRegion = new ArrayList<>();
-			log("Started region");
-		}
-		else if (commandWord.startsWith("G37"))
-		{
-			inRegion = false;
-
-			if (currentRegion != null)
-			{
-				// Check if contains enough points for a valid closed region
-				if (currentRegion.size() < 3)
-				{
-					throw new RuntimeException("Attempt to close a region with insufficient points.");
-				}
-
-				// Check if closed
-				java.awt.geom.Point2D firstPoint = ((Line2D) currentRegion.get(0)).getP1();
-				java.awt.geom.Point2D lastPoint = ((Line2D) currentRegion.get(currentRegion.size() - 1)).getP2();
-
-				log("REGION first point: " + firstPoint + ", last point: " + lastPoint + ", BOOL: " + (firstPoint == lastPoint) + ", BOOLX: " + (firstPoint.getX() == lastPoint.getX()) + ", BOOLY: " + (firstPoint.getY() == lastPoint.getY()));
-
-				if ((firstPoint.getX() != lastPoint.getX()) || (firstPoint.getY() != lastPoint.getY()))
-				{
-					throw new RuntimeException("Attempt to close an open region.");
-				}
-
-				Path2D p = new Path2D.Double();
-
-				int i;
-				for (i = 0; i < currentRegion.size(); i++)
-				{
-					if (i == 0)
-					{
-						p.append(currentRegion.get(i), false);
-					}
-					else
-					{
-						p.append(currentRegion.get(i), true);
-					}
-				}
-
-				objects.add(new Region(p, globalModifiers.clone()));
-
-				currentRegion = null;
-			}
+	}
 
-			inRegion = false;
-			log("Exited region");
-		}
-		else if (commandWord.startsWith("AB"))
-		{
-			throw new Exceptions.UnsupportedCommandException(commandWord);
-		}
-		else if (commandWord.startsWith("SR"))
-		{
-			throw new Exceptions.UnsupportedCommandException(commandWord);
-		}
-		else if (commandWord.startsWith("TF"))
-		{
-			// Attribute - don't care
-		}
-		else if (commandWord.startsWith("TA"))
-		{
-			// Attribute - don't care
-		}
-		else if (commandWord.startsWith("TO"))
-		{
-			// Attribute - don't care
-		}
-		else if (commandWord.startsWith("TD"))
-		{
-			// Attribute - don't care
-		}
-		else if (isCoordinate(commandWord)) // Coordinate
+	private class CoordinateHandler implements CommandHandler
+	{
+		@Override
+		public void process(Command command)
 		{
-			Matcher m = coordinatePattern.matcher(commandWord);
-			if (!m.matches())
-				throw new RuntimeException("Invalid draw command: " + commandWord);
+			int operation = coordinate.decode(command.arena, command.firstWord);
+			if (operation < 0)
+				throw new Exceptions.UnsupportedCommandException(command.getWord(0));
 
-			Integer args[] = new Integer[m.groupCount() - 1];
-			for (int i = 0; i < m.groupCount() - 1; i++)
-			{
-				String group = m.group(i + 1);
-				if (group == null)
-					args[i] = null;
-				else
-					args[i] = importCoordinate(Integer.parseInt(group));
-			}
-
-			String operation = m.group(5);
 			switch (operation)
 			{
-				case "D01": // Interpolate
+				case 1: // Interpolate
 				{
 					if (interpolationMode == InterpolationMode.NONE)
 						throw new RuntimeException("Interpolation requested but interpolation mode not set.");
 
-					Integer strokeWidth = null;
+					int strokeWidth = 0; // Regions are not stroked
 
 					if (!inRegion)
 					{
@@ -833,16 +982,21 @@ public class Layer
 						strokeWidth = ((Aperture.Circle) selectedAperture).diameter;
 					}
 
-					Integer newX = currentPoint.x;
-					if (args[0] != null)
-						newX = args[0];
+					int newX = currentPoint.x;
+					if (coordinate.hasX)
+						newX = importCoordinate(coordinate.x);
+
+					int newY = currentPoint.y;
+					if (coordinate.hasY)
+						newY = importCoordinate(coordinate.y);
 
-					Integer newY = currentPoint.y;
-					if (args[1] != null)
-						newY = args[1];
+					int I = 0;
+					if (coordinate.hasI)
+						I = importCoordinate(coordinate.i);
 
-					Integer I = args[2];
-					Integer J = args[3];
+					int J = 0;
+					if (coordinate.hasJ)
+						J = importCoordinate(coordinate.j);
 
 					// if (!inRegion)
 					// {
@@ -853,14 +1007,13 @@ public class Layer
 
 					if (interpolationMode == InterpolationMode.LINEAR)
 					{
-						Line2D l = new Line2D.Double(Utils.toPixels(currentPoint.x), Utils.toPixels(currentPoint.y), Utils.toPixels(newX), Utils.toPixels(newY));
 						if (inRegion)
 						{
-							currentRegion.add(l);
+							currentRegion.add(new Line2D.Double(Utils.toPixels(currentPoint.x), Utils.toPixels(currentPoint.y), Utils.toPixels(newX), Utils.toPixels(newY)));
 						}
 						else
 						{
-							objects.add(new Interpolation(globalModifiers.clone(), strokeWidth, l));
+							addTrace(traces.addLine((int) Utils.toPixels(currentPoint.x), (int) Utils.toPixels(currentPoint.y), (int) Utils.toPixels(newX), (int) Utils.toPixels(newY), strokeWidth));
 						}
 
 					}
@@ -886,15 +1039,15 @@ public class Layer
 						
 						log("SUBTENDS: " + angleSubtended_deg);
 
-						Arc2D l = new Arc2D.Double();
-						l.setArcByCenter(Utils.toPixels(currentPoint.x + I), Utils.toPixels(currentPoint.y + J), Utils.toPixels(radius), startAngle_deg, angleSubtended_deg, Arc2D.OPEN);
 						if (inRegion)
 						{
+							Arc2D l = new Arc2D.Double();
+							l.setArcByCenter(Utils.toPixels(currentPoint.x + I), Utils.toPixels(currentPoint.y + J), Utils.toPixels(radius), startAngle_deg, angleSubtended_deg, Arc2D.OPEN);
 							currentRegion.add(l);
 						}
 						else
 						{
-							objects.add(new Interpolation(globalModifiers.clone(), strokeWidth, l));
+							addTrace(traces.addArc((int) Utils.toPixels(currentPoint.x + I), (int) Utils.toPixels(currentPoint.y + J), (int) Utils.toPixels(radius), startAngle_deg, angleSubtended_deg, strokeWidth));
 						}
 					}
 					else if (interpolationMode == InterpolationMode.CIRC_CCW)
@@ -919,15 +1072,15 @@ public class Layer
 						
 						log("SUBTENDS: " + angleSubtended_deg);
 
-						Arc2D l = new Arc2D.Double();
-						l.setArcByCenter(Utils.toPixels(currentPoint.x + I), Utils.toPixels(currentPoint.y + J), Utils.toPixels(radius), startAngle_deg, angleSubtended_deg, Arc2D.OPEN);
 						if (inRegion)
 						{
+							Arc2D l = new Arc2D.Double();
+							l.setArcByCenter(Utils.toPixels(currentPoint.x + I), Utils.toPixels(currentPoint.y + J), Utils.toPixels(radius), startAngle_deg, angleSubtended_deg, Arc2D.OPEN);
 							currentRegion.add(l);
 						}
 						else
 						{
-							objects.add(new Interpolation(globalModifiers.clone(), strokeWidth, l));
+							addTrace(traces.addArc((int) Utils.toPixels(currentPoint.x + I), (int) Utils.toPixels(currentPoint.y + J), (int) Utils.toPixels(radius), startAngle_deg, angleSubtended_deg, strokeWidth));
 						}
 
 					}
@@ -937,178 +1090,458 @@ public class Layer
 
 					break;
 				}
-				case "D02": // Move if in region or not in region
-					if (args[0] == null && args[1] == null)
-						throw new RuntimeException("Invalid parameters for draw operation: " + commandWord);
-
-					if (args[0] != null)
-						currentPoint.x = args[0];
-					if (args[1] != null)
-						currentPoint.y = args[1];
+				case 2: // Move if in region or not in region
+					if (!coordinate.hasX && !coordinate.hasY)
+						throw new RuntimeException("Invalid parameters for draw operation: " + command.getWord(0));
+
+					if (coordinate.hasX)
+						currentPoint.x = importCoordinate(coordinate.x);
+					if (coordinate.hasY)
+						currentPoint.y = importCoordinate(coordinate.y);
 					break;
-				case "D03": // Flash
+				case 3: // Flash
 					if (inRegion)
-						throw new RuntimeException("Illegal operation in Region mode: " + commandWord);
+						throw new RuntimeException("Illegal operation in Region mode: " + command.getWord(0));
 
-					if (args[0] == null && args[1] == null)
-						throw new RuntimeException("Invalid parameters for flash operation: " + commandWord);
+					if (!coordinate.hasX && !coordinate.hasY)
+						throw new RuntimeException("Invalid parameters for flash operation: " + command.getWord(0));
 
-					if (args[0] != null)
-						currentPoint.x = args[0];
-					if (args[1] != null)
-						currentPoint.y = args[1];
+					if (coordinate.hasX)
+						currentPoint.x = importCoordinate(coordinate.x);
+					if (coordinate.hasY)
+						currentPoint.y = importCoordinate(coordinate.y);
 
 					flash(currentPoint);
 					break;
 				default:
-					throw new RuntimeException("Invalid draw operation: " + operation);
+					throw new RuntimeException("Invalid draw operation: D0" + operation);
 			}
 		}
-		else if (commandWord.startsWith("M02"))
-		{
-			endOfGerber();
-		}
-		// Deprecated commands:
-		else if (commandWord.startsWith("G54")) // Select aperture
-		{
-			// Ignore
-		}
-		else if (commandWord.startsWith("G55")) // Prepare for flash
-		{
-			// Ignore
-		}
-		else if (commandWord.startsWith("G70")) // Set units to inches
-		{
-			setUnitsIN();
-		}
-		else if (commandWord.startsWith("G71")) // Set units to mm
-		{
-			setUnitsMM();
-		}
-		else if (commandWord.startsWith("G90")) // Set coordinate format absolute
-		{
-			// Ignore
-		}
-		else if (commandWord.startsWith("G91")) // Set coordinate format incremental
+	}
+
+	private class LayerModifierHandler implements CommandHandler
+	{
+		@Override
+		public void process(Command command)
 		{
-			throw new Exceptions.UnsupportedCommandException(commandWord);
+			String commandWord = command.getWord(0);
+			switch (command.charAt(1))
+			{
+				case 'P':
+				{
+					if (commandWord.equals("LPC"))
+					{
+						globalModifiers = globalModifiers.withPolarity(Polarity.CLEAR);
+					}
+					else if (commandWord.equals("LPD"))
+					{
+						globalModifiers = globalModifiers.withPolarity(Polarity.DARK);
+					}
+					else
+						throw new RuntimeException("Invalid LP command: " + commandWord);
+					break;
+				}
+				case 'M':
+				{
+					if (commandWord.equals("LMN"))
+					{
+						globalModifiers = globalModifiers.withMirroring(Mirroring.NONE);
+					}
+					else if (commandWord.equals("LMX"))
+					{
+						globalModifiers = globalModifiers.withMirroring(Mirroring.X);
+					}
+					else if (commandWord.equals("LMY"))
+					{
+						globalModifiers = globalModifiers.withMirroring(Mirroring.Y);
+					}
+					else if (commandWord.equals("LMXY"))
+					{
+						globalModifiers = globalModifiers.withMirroring(Mirroring.XY);
+					}
+					else
+						throw new RuntimeException("Invalid LM command: " + commandWord);
+					break;
+				}
+				case 'R':
+				{
+					Matcher m = LRPattern.matcher(commandWord);
+					if (!m.matches())
+						throw new RuntimeException("Invalid LR command: " + commandWord);
+
+					Double rotation_deg = Double.parseDouble(m.group(1));
+					globalModifiers = globalModifiers.withRotation(Utils.toRads(rotation_deg));
+					break;
+				}
+				default:
+				{
+					Matcher m = LSPattern.matcher(commandWord);
+					if (!m.matches())
+						throw new RuntimeException("Invalid LS command: " + commandWord);
+
+					Double scale = Double.parseDouble(m.group(1));
+					globalModifiers = globalModifiers.withScaling(scale);
+					break;
+				}
+			}
 		}
-		else if (commandWord.startsWith("M00")) // Program stop
+	}
+
+	private class AttributeHandler implements CommandHandler
+	{
+		@Override
+		public void process(Command command)
 		{
-			endOfGerber();
+			// Attribute - don't care
 		}
-		else if (commandWord.startsWith("M01")) // Optional stop
+	}
+
+	private class UnsupportedCommandHandler implements CommandHandler
+	{
+		@Override
+		public void process(Command command)
 		{
-			// Ignore
+			throw new Exceptions.UnsupportedCommandException(command.getWord(0));
 		}
-		else if (commandWord.startsWith("IP")) // Image polarity
+	}
+
+	private class DeprecatedCommandHandler implements CommandHandler
+	{
+		@Override
+		public void process(Command command)
 		{
-			if (commandWord.equals("IPPOS"))
+			String commandWord = command.getWord(0);
+			if (commandWord.startsWith("G54")) // Select aperture
+			{
+				// Ignore
+			}
+			else if (commandWord.startsWith("G55")) // Prepare for flash
+			{
+				// Ignore
+			}
+			else if (commandWord.startsWith("G70")) // Set units to inches
+			{
+				setUnitsIN();
+			}
+			else if (commandWord.startsWith("G71")) // Set units to mm
+			{
+				setUnitsMM();
+			}
+			else if (commandWord.startsWith("G90")) // Set coordinate format absolute
 			{
-				warn("Deprecated command IP used.");
+				// Ignore
+			}
+			else if (commandWord.startsWith("G74")) // Single quadrant mode
+			{
+				// Ignore
+			}
+			else if (commandWord.startsWith("M00")) // Program stop
+			{
+				endOfGerber();
+			}
+			else if (commandWord.startsWith("M01")) // Optional stop
+			{
+				// Ignore
+			}
+			else if (commandWord.startsWith("IP")) // Image polarity
+			{
+				if (commandWord.equals("IPPOS"))
+				{
+					warn("Deprecated command IP used.");
+				}
+				else
+					throw new Exceptions.UnsupportedCommandException(commandWord);
+			}
+			else if (commandWord.startsWith("AS")) // Axes correspondence graphics state parameter
+			{
+				// Ignore
+			}
+			else if (commandWord.startsWith("IR")) // Image rotation
+			{
+				// Ignore
+			}
+			else if (commandWord.startsWith("MI")) // Image mirroring
+			{
+				// Ignore
+			}
+			else if (commandWord.startsWith("OF")) // Image offset
+			{
+				warn("Deprecated command OF used. This is being ignored, but may cause layer misalignment.");
+			}
+			else if (commandWord.startsWith("SF")) // Scale factor
+			{
+				// Ignore
+			}
+			else if (commandWord.startsWith("IN")) // Comment - image filename
+			{
+				// Ignore
+			}
+			else if (commandWord.startsWith("LN")) // Comment - load name
+			{
+				// Ignore
 			}
 			else
 				throw new Exceptions.UnsupportedCommandException(commandWord);
 		}
-		else if (commandWord.startsWith("AS")) // Axes correspondence graphics state parameter
+	}
+
+	private void startRegion()
+	{
+		inRegion = true;
+		currentRegion = new ArrayList<>();
+		log("Started region");
+	}
+
+	private void endRegion()
+	{
+		inRegion = false;
+
+		if (currentRegion != null)
 		{
-			// Ignore
+			// Check if contains enough points for a valid closed region
+			if (currentRegion.size() < 3)
+			{
+				throw new RuntimeException("Attempt to close a region with insufficient points.");
+			}
+
+			// Check if closed
+			java.awt.geom.Point2D firstPoint = ((Line2D) currentRegion.get(0)).getP1();
+			java.awt.geom.Point2D lastPoint = ((Line2D) currentRegion.get(currentRegion.size() - 1)).getP2();
+
+			log("REGION first point: " + firstPoint + ", last point: " + lastPoint + ", BOOL: " + (firstPoint == lastPoint) + ", BOOLX: " + (firstPoint.getX() == lastPoint.getX()) + ", BOOLY: " + (firstPoint.getY() == lastPoint.getY()));
+
+			if ((firstPoint.getX() != lastPoint.getX()) || (firstPoint.getY() != lastPoint.getY()))
+			{
+				throw new RuntimeException("Attempt to close an open region.");
+			}
+
+			Path2D p = new Path2D.Double();
+
+			int i;
+			for (i = 0; i < currentRegion.size(); i++)
+			{
+				if (i == 0)
+				{
+					p.append(currentRegion.get(i), false);
+				}
+				else
+				{
+					p.append(currentRegion.get(i), true);
+				}
+			}
+
+			objects.add(new Region(p, globalModifiers));
+
+			currentRegion = null;
 		}
-		else if (commandWord.startsWith("IR")) // Image rotation
+
+		inRegion = false;
+		log("Exited region");
+	}
+
+	private ByteBuffer mapGerberFile(File file)
+	{
+		if (!file.exists())
+			throw new RuntimeException("Failed to open gerber file. Are you sure it exists?");
+		log("Found gerber file.");
+
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
 		{
-			// Ignore
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new RuntimeException("Gerber file is too large to map (" + channel.size() + " bytes).");
+
+			return channel.map(MapMode.READ_ONLY, 0, channel.size());
 		}
-		else if (commandWord.startsWith("MI")) // Image mirroring
+		catch (IOException e)
 		{
-			// Ignore
+			throw new RuntimeException("Failed to read gerber file " + file.getName() + ".", e);
 		}
-		else if (commandWord.startsWith("OF")) // Image offset
+	}
+
+	/** Tokenizes and processes the file on the calling thread, one batch at a time. **/
+	private void parseAndProcess(File file)
+	{
+		ByteBuffer in = mapGerberFile(file);
+		try
 		{
-			warn("Deprecated command OF used. This is being ignored, but may cause layer misalignment.");
+			tokenize(in, new CommandBatch(in), new BatchSink()
+			{
+				@Override
+				public CommandBatch accept(CommandBatch batch)
+				{
+					for (Command command : batch.commands)
+						processCommand(command);
+					batch.clear();
+					return batch;
+				}
+			});
 		}
-		else if (commandWord.startsWith("SF")) // Scale factor
+		catch (InterruptedException e)
 		{
-			// Ignore
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while parsing " + file.getName() + ".", e);
 		}
-		else if (commandWord.startsWith("IN")) // Comment - image filename
+	}
+
+	/**
+	 * Tokenizes the file on a separate thread while the calling thread processes commands. The two threads are joined by a bounded ring of
+	 * PIPELINE_DEPTH batches, so the tokenizer can only run a few batches ahead of processing.
+	 */
+	private void parseAndProcessPipelined(File file)
+	{
+		ByteBuffer in = mapGerberFile(file);
+
+		ArrayBlockingQueue<CommandBatch> fullBatches = new ArrayBlockingQueue<>(PIPELINE_DEPTH);
+		ArrayBlockingQueue<CommandBatch> freeBatches = new ArrayBlockingQueue<>(PIPELINE_DEPTH);
+		for (int i = 0; i < PIPELINE_DEPTH - 1; i++)
+			freeBatches.add(new CommandBatch(in));
+
+		AtomicReference<RuntimeException> tokenizerError = new AtomicReference<>();
+		Thread tokenizer = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					try
+					{
+						tokenize(in, new CommandBatch(in), new BatchSink()
+						{
+							@Override
+							public CommandBatch accept(CommandBatch batch) throws InterruptedException
+							{
+								fullBatches.put(batch);
+								if (batch.endOfFile)
+									return null;
+								return freeBatches.take();
+							}
+						});
+					}
+					catch (RuntimeException e)
+					{
+						// Hand the error over to the processing thread, and let it know nothing more is coming:
+						tokenizerError.set(e);
+						CommandBatch lastBatch = new CommandBatch(in);
+						lastBatch.endOfFile = true;
+						fullBatches.put(lastBatch);
+					}
+				}
+				catch (InterruptedException e)
+				{
+					// Processing has been abandoned
+				}
+			}
+		}, "Tokenizer (" + file.getName() + ")");
+		tokenizer.setDaemon(true);
+		tokenizer.start();
+
+		try
 		{
-			// Ignore
+			while (true)
+			{
+				CommandBatch batch = fullBatches.take();
+				for (Command command : batch.commands)
+					processCommand(command);
+
+				if (batch.endOfFile)
+					break;
+
+				batch.clear();
+				freeBatches.put(batch);
+			}
 		}
-		else if (commandWord.startsWith("LN")) // Comment - load name
+		catch (InterruptedException e)
 		{
-			// Ignore
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while parsing " + file.getName() + ".", e);
 		}
-		else if (commandWord.startsWith("G74")) // Single quadrant mode
+		finally
 		{
-			// Ignore
+			tokenizer.interrupt();
 		}
-		else
-			throw new Exceptions.UnsupportedCommandException(commandWord);
+
+		if (tokenizerError.get() != null)
+			throw tokenizerError.get();
 	}
 
-	private ArrayList<Command> parseGerberFile(File file)
+	private void tokenize(ByteBuffer in, CommandBatch batch, BatchSink sink) throws InterruptedException
 	{
-		if (!file.exists())
-			throw new RuntimeException("Failed to open gerber file. Are you sure it exists?");
-		log("Found gerber file.");
-
-		ArrayList<Command> commands = new ArrayList<>();
-		try (InputStream in = new BufferedInputStream(new FileInputStream(file)))
+		int length = in.limit();
+		ParserState parserState = ParserState.NONE;
+		int wordStart = -1; // Offset of the first non-whitespace character of the current word
+		int wordEnd = -1; // Offset just past the last non-whitespace character of the current word
+		boolean wordIsFragmented = false; // Set if the current word is interrupted by whitespace or a '%', so cannot be a single slice
+		Command currentCommand = null;
+		for (int i = 0; i < length; i++)
 		{
-			int c;
-			ParserState parserState = ParserState.NONE;
-			String word = "";
-			Command currentCommand = null;
-			while ((c = in.read()) != -1)
+			int c = in.get(i) & 0xFF;
+			if (Character.isWhitespace(c))
+				continue; // Ignore all whitespace
+
+			if (c == '%')
 			{
-				if (Character.isWhitespace(c))
-					continue; // Ignore all whitespace
+				if (wordStart != -1)
+					wordIsFragmented = true;
 
-				if (c == '%')
+				if (parserState == ParserState.IN_EXT_CMD)
 				{
-					if (parserState == ParserState.IN_EXT_CMD)
-					{
-						parserState = ParserState.NONE;
+					parserState = ParserState.NONE;
 
-						if (currentCommand == null || currentCommand.words.size() == 0)
-							throw new RuntimeException("Unexpected item in baggage area.");
+					if (currentCommand == null || currentCommand.numWords == 0)
+						throw new RuntimeException("Unexpected item in baggage area.");
 
-						commands.add(currentCommand);
-						currentCommand = null;
-					}
-					else if (parserState != ParserState.NONE)
-						throw new RuntimeException("Invalid state change. Probably a missing delimiter somewhere...");
-					else
-						parserState = ParserState.IN_EXT_CMD;
+					batch.commands.add(currentCommand);
+					currentCommand = null;
+
+					if (batch.commands.size() == COMMAND_BATCH_SIZE)
+						batch = sink.accept(batch);
 				}
-				else if (c == '*')
-				{
-					if (parserState != ParserState.IN_EXT_CMD)
-					{
-						currentCommand = new Command(word);
-						commands.add(currentCommand);
-						currentCommand = null;
-					}
-					else
-					{
-						if (currentCommand == null)
-							currentCommand = new ExtendedCommand();
+				else if (parserState != ParserState.NONE)
+					throw new RuntimeException("Invalid state change. Probably a missing delimiter somewhere...");
+				else
+					parserState = ParserState.IN_EXT_CMD;
+			}
+			else if (c == '*')
+			{
+				TokenArena arena = batch.arena;
+				int word;
+				if (wordStart == -1)
+					word = arena.add(i, i);
+				else if (wordIsFragmented)
+					word = arena.addCompacted(wordStart, wordEnd);
+				else
+					word = arena.add(wordStart, wordEnd);
 
-						((ExtendedCommand) currentCommand).addWord(word);
-					}
+				if (parserState != ParserState.IN_EXT_CMD)
+				{
+					batch.commands.add(new Command(arena, word));
 
-					word = "";
+					if (batch.commands.size() == COMMAND_BATCH_SIZE)
+						batch = sink.accept(batch);
 				}
 				else
 				{
-					word += (char) c;
+					if (currentCommand == null)
+						currentCommand = new ExtendedCommand(arena);
+
+					((ExtendedCommand) currentCommand).addWord(word);
 				}
+
+				wordStart = -1;
+				wordIsFragmented = false;
+			}
+			else
+			{
+				if (wordStart == -1)
+					wordStart = i;
+				else if (wordEnd != i)
+					wordIsFragmented = true;
+				wordEnd = i + 1;
 			}
 		}
-		catch (Exception e)
-		{
-			e.printStackTrace();
-		}
-		return commands;
+
+		batch.endOfFile = true;
+		sink.accept(batch);
 	}
 }
@@ -0,0 +1,85 @@
+package main;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Builds Layers from Gerber files in parallel on a given executor. Each layer is parsed, processed and has its bounds calculated on a worker
+ * thread, and the listener is told about each one as soon as it is ready.
+ */
+public class LayerLoader
+{
+	private final Executor executor;
+
+	public interface Listener
+	{
+		/** Called from the worker thread that loaded the layer. **/
+		void layerLoaded(File file, Layer layer, int numLoaded, int numToLoad);
+	}
+
+	public LayerLoader(Executor executor)
+	{
+		this.executor = executor;
+	}
+
+	/**
+	 * Loads all the given files, blocking until every one has finished. The returned array lines up with the given list; null files give null
+	 * layers. If any layer fails to load, the first failure is rethrown once the others have finished.
+	 */
+	public Layer[] loadAll(List<File> files, Listener listener)
+	{
+		Layer[] layers = new Layer[files.size()];
+
+		int numToLoad = 0;
+		for (File file : files)
+		{
+			if (file != null)
+				numToLoad++;
+		}
+		final int total = numToLoad;
+
+		AtomicInteger numLoaded = new AtomicInteger();
+		CompletableFuture<?>[] futures = new CompletableFuture<?>[files.size()];
+		for (int i = 0; i < files.size(); i++)
+		{
+			File file = files.get(i);
+			if (file == null)
+			{
+				futures[i] = CompletableFuture.completedFuture(null);
+				continue;
+			}
+
+			int layerIndex = i;
+			futures[i] = CompletableFuture.runAsync(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					Layer layer = new Layer(file);
+					layer.getBounds(); // Calculated here so it overlaps with the other layers loading
+
+					layers[layerIndex] = layer;
+					if (listener != null)
+						listener.layerLoaded(file, layer, numLoaded.incrementAndGet(), total);
+				}
+			}, executor);
+		}
+
+		try
+		{
+			CompletableFuture.allOf(futures).join();
+		}
+		catch (CompletionException e)
+		{
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw e;
+		}
+
+		return layers; // Completion of the futures makes the workers' writes visible here
+	}
+}
@@ -3,6 +3,9 @@ package main;
 import static main.Utils.log;
 
 import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.swing.JFileChooser;
 
@@ -13,7 +16,7 @@ public class Main
 
 	private Renderer renderer;
 	
-	private Layer loadLayer(String chooserTitle)
+	private File chooseLayerFile(String chooserTitle)
 	{
 		JFileChooser j = new JFileChooser();
 		j.setDialogType(JFileChooser.OPEN_DIALOG);
@@ -26,10 +29,7 @@ public class Main
 		
 		File file = j.getSelectedFile();
 		if (file != null && file.exists())
-		{
-			Layer layer = new Layer(file);
-			return layer;
-		}
+			return file;
 		
 		return null;
 	}
@@ -43,14 +43,37 @@ public class Main
 		renderer = new Renderer();
 		renderer.createWindow();
 		
-		Layer copper = loadLayer("Open copper (blue) gerber file");
-		Layer solderResist = loadLayer("Open solder resist (green) gerber file");
-		Layer silk = loadLayer("Open silk (red) gerber file");
-		renderer.addLayers(copper, solderResist, silk);
+		File copper = chooseLayerFile("Open copper (blue) gerber file");
+		File solderResist = chooseLayerFile("Open solder resist (green) gerber file");
+		File silk = chooseLayerFile("Open silk (red) gerber file");
+
+		int numThreads = Config.loaderThreads > 0 ? Config.loaderThreads : Runtime.getRuntime().availableProcessors();
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		try
+		{
+			LayerLoader loader = new LayerLoader(executor);
+			Layer[] layers = loader.loadAll(Arrays.asList(copper, solderResist, silk), new LayerLoader.Listener()
+			{
+				@Override
+				public void layerLoaded(File file, Layer layer, int numLoaded, int numToLoad)
+				{
+					renderer.showProgress(String.format("Loaded %s (%d/%d)", file.getName(), numLoaded, numToLoad), 50 * numLoaded / numToLoad);
+				}
+			});
+			renderer.addLayers(layers);
+		}
+		finally
+		{
+			executor.shutdown();
+		}
 	}
 	
 	public static void main(String[] args)
 	{
+		// Java2D's Marlin renderer clips paths to the clip rectangle before rasterising them, which shifts anti-aliased edges slightly depending on
+		// the clip. Tiles would then not match up with each other (see TiledRasteriser), so this has to be off before anything is drawn:
+		System.setProperty("sun.java2d.renderer.clip", "false");
+
 		new Main();
 	}
 }
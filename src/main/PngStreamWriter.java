@@ -0,0 +1,358 @@
+package main;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes an 8-bit RGB PNG a band of rows at a time, so the image never has to be in memory whole. Rows are filtered against the one above, which
+ * turns the long runs of identical rows on a board into zeros that deflate well.
+ *
+ * Rows are gathered into blocks that are filtered and deflated in parallel, the way pigz does it. A block is filtered on its own, needing only
+ * the last row of the block before, and its part of the zlib checksum is worked out alongside. It is then compressed on its own, primed with
+ * the last 32 KB of the filtered block before as its dictionary so matches can still reach back across the join, and ends with a sync flush so
+ * the blocks can simply be concatenated into one zlib stream. Finished blocks are written out as IDAT chunks in order as soon as all those before
+ * them are, their checksums combined as they go, and only a few blocks per thread are in flight at once.
+ */
+public class PngStreamWriter implements Closeable
+{
+	private static final byte[] SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+	private static final int CHUNK_SIZE = 1 << 16;
+	private static final int COMPRESSION_LEVEL = 4; // The same as ImageIO's PNG writer
+	private static final int FILTER_UP = 2;
+	private static final int BLOCK_SIZE = 1 << 18; // Bytes of filtered rows deflated as one task, rounded up to whole rows
+	private static final int DICTIONARY_SIZE = 1 << 15; // Deflate's window
+	private static final int BLOCKS_IN_FLIGHT_PER_THREAD = 2;
+
+	private final DataOutputStream out;
+	private final int width, height;
+	private final ForkJoinPool pool;
+	private final int rowsPerBlock;
+	private final int rowLength; // Bytes per row, including the filter type byte at the start
+	private final ChunkOutputStream idat = new ChunkOutputStream();
+	private long adler = 1; // zlib's checksum of the filtered stream written so far
+	private final ArrayDeque<CompletableFuture<Block>> pending = new ArrayDeque<>(); // Blocks being filtered and deflated, in order
+
+	private byte[] block; // Unfiltered rows not yet handed to a task
+	private int blockRows;
+	private byte[] lastRow; // Unfiltered last row of the block before, which the next block's first row is filtered against
+	private CompletableFuture<byte[]> previousBlock; // Last block handed to a task, filtered, whose end is the next one's dictionary
+	private int rowsWritten;
+
+	/** A block of rows, compressed, with the checksum and length of its filtered bytes. **/
+	private static class Block
+	{
+		final byte[] compressed;
+		final long adler;
+		final int length;
+
+		Block(byte[] compressed, long adler, int length)
+		{
+			this.compressed = compressed;
+			this.adler = adler;
+			this.length = length;
+		}
+	}
+
+	/** Starts an image of the given size, which is deflated on the pool. **/
+	public PngStreamWriter(OutputStream out, int width, int height, ForkJoinPool pool) throws IOException
+	{
+		this.out = new DataOutputStream(out);
+		this.width = width;
+		this.height = height;
+		this.pool = pool;
+		rowLength = 1 + width * 3;
+		lastRow = new byte[rowLength]; // Rows above the image are taken as zero
+		rowsPerBlock = Math.max(BLOCK_SIZE / rowLength, 1);
+		block = new byte[rowsPerBlock * rowLength];
+
+		this.out.write(SIGNATURE);
+		byte[] header = new byte[13];
+		writeInt(header, 0, width);
+		writeInt(header, 4, height);
+		header[8] = 8; // Bit depth
+		header[9] = 2; // Colour type: RGB
+		writeChunk("IHDR", header, header.length);
+
+		idat.write(0x78); // zlib header: deflate with a 32 KB window...
+		idat.write(0x5E); // ...at a middling level, no preset dictionary
+	}
+
+	/** Appends the rows of a TYPE_INT_RGB or TYPE_USHORT_555_RGB band below those already written. **/
+	public void writeRows(BufferedImage band) throws IOException
+	{
+		if (band.getWidth() != width || rowsWritten + band.getHeight() > height)
+			throw new IllegalArgumentException("Band does not fit in the rest of the image.");
+
+		for (int y = 0; y < band.getHeight(); y++)
+		{
+			// Rows are only converted here, as the band is reused once this returns; they are filtered with the rest of their block
+			int start = blockRows * rowLength + 1;
+			switch (band.getType())
+			{
+				case BufferedImage.TYPE_INT_RGB:
+				{
+					int[] data = ((DataBufferInt) band.getRaster().getDataBuffer()).getData();
+					for (int x = 0, i = y * width, p = start; x < width; x++, i++, p += 3)
+					{
+						int rgb = data[i];
+						block[p] = (byte) (rgb >>> 16);
+						block[p + 1] = (byte) (rgb >>> 8);
+						block[p + 2] = (byte) rgb;
+					}
+					break;
+				}
+				case BufferedImage.TYPE_USHORT_555_RGB:
+				{
+					short[] data = ((DataBufferUShort) band.getRaster().getDataBuffer()).getData();
+					for (int x = 0, i = y * width, p = start; x < width; x++, i++, p += 3)
+					{
+						int rgb = data[i];
+						block[p] = (byte) expand5(rgb >>> 10);
+						block[p + 1] = (byte) expand5(rgb >>> 5);
+						block[p + 2] = (byte) expand5(rgb);
+					}
+					break;
+				}
+				default:
+					throw new IllegalArgumentException("Only TYPE_INT_RGB and TYPE_USHORT_555_RGB bands can be written.");
+			}
+			rowsWritten++;
+			if (++blockRows == rowsPerBlock)
+				submitBlock();
+		}
+	}
+
+	/** Scales a 5-bit channel to 8 bits, rounding to nearest like ImageIO. **/
+	static int expand5(int v)
+	{
+		return ((v & 0x1F) * 255 + 15) / 31;
+	}
+
+	/** Hands the current block to the pool, first writing out any blocks that have finished and waiting if too many are in flight. **/
+	private void submitBlock() throws IOException
+	{
+		byte[] input = blockRows == rowsPerBlock ? block : Arrays.copyOf(block, blockRows * rowLength);
+		byte[] above = lastRow;
+		lastRow = Arrays.copyOfRange(input, input.length - rowLength, input.length);
+
+		CompletableFuture<byte[]> filtered = CompletableFuture.supplyAsync(filterBlock(input, above, rowLength), pool);
+		if (previousBlock == null)
+			pending.add(filtered.thenApplyAsync(new Function<byte[], Block>()
+			{
+				@Override
+				public Block apply(byte[] input)
+				{
+					return deflateBlock(input, null);
+				}
+			}, pool));
+		else
+			pending.add(filtered.thenCombineAsync(previousBlock, new BiFunction<byte[], byte[], Block>()
+			{
+				@Override
+				public Block apply(byte[] input, byte[] previous)
+				{
+					return deflateBlock(input, previous);
+				}
+			}, pool));
+		previousBlock = filtered;
+		block = new byte[block.length];
+		blockRows = 0;
+
+		while (!pending.isEmpty() && (pending.peek().isDone() || pending.size() > pool.getParallelism() * BLOCKS_IN_FLIGHT_PER_THREAD))
+			writeBlock(join(pending.poll()));
+	}
+
+	/**
+	 * Filters each row of a block in place against the one above, the first against the given row. Rows are done from the bottom up, so each is
+	 * filtered against the row above before that row is filtered itself. Runs on a worker of the pool.
+	 */
+	private static Supplier<byte[]> filterBlock(byte[] block, byte[] above, int rowLength)
+	{
+		return new Supplier<byte[]>()
+		{
+			@Override
+			public byte[] get()
+			{
+				for (int offset = block.length - rowLength; offset >= 0; offset -= rowLength)
+				{
+					byte[] source = offset == 0 ? above : block;
+					int sourceOffset = offset == 0 ? 0 : offset - rowLength;
+					block[offset] = FILTER_UP;
+					for (int i = 1; i < rowLength; i++)
+						block[offset + i] -= source[sourceOffset + i];
+				}
+				return block;
+			}
+		};
+	}
+
+	/** Compresses a filtered block, primed with the end of the one before if there is one, and checksums it. Runs on a worker of the pool. **/
+	private static Block deflateBlock(byte[] input, byte[] previous)
+	{
+		Adler32 adler = new Adler32();
+		adler.update(input);
+
+		Deflater deflater = new Deflater(COMPRESSION_LEVEL, true); // Raw deflate, as the blocks share the one zlib wrapper
+		try
+		{
+			if (previous != null)
+			{
+				int length = Math.min(previous.length, DICTIONARY_SIZE);
+				deflater.setDictionary(previous, previous.length - length, length);
+			}
+			deflater.setInput(input);
+
+			// A sync flush ends the block on a byte boundary without marking it as the last, so the next can follow straight on:
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream(input.length / 4 + 64);
+			byte[] buffer = new byte[CHUNK_SIZE];
+			int n;
+			do
+			{
+				n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+				compressed.write(buffer, 0, n);
+			}
+			while (n == buffer.length);
+			return new Block(compressed.toByteArray(), adler.getValue(), input.length);
+		}
+		finally
+		{
+			deflater.end();
+		}
+	}
+
+	private void writeBlock(Block block) throws IOException
+	{
+		idat.write(block.compressed);
+		adler = combineAdler(adler, block.adler, block.length);
+	}
+
+	/** Returns the Adler-32 of two runs of bytes one after the other, from the checksum of each and the length of the second, as zlib does. **/
+	private static long combineAdler(long adler1, long adler2, long length2)
+	{
+		final int base = 65521; // Largest prime below 2^16
+		long remainder = length2 % base;
+		long sum1 = adler1 & 0xFFFF;
+		long sum2 = remainder * sum1 % base;
+		sum1 += (adler2 & 0xFFFF) + base - 1;
+		sum2 += (adler1 >>> 16 & 0xFFFF) + (adler2 >>> 16 & 0xFFFF) + base - remainder;
+		sum1 %= base;
+		sum2 %= base;
+		return sum2 << 16 | sum1;
+	}
+
+	private static Block join(CompletableFuture<Block> future)
+	{
+		try
+		{
+			return future.join();
+		}
+		catch (CompletionException e)
+		{
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw e;
+		}
+	}
+
+	/** Finishes the image, which must have had all its rows written, and closes the stream. **/
+	@Override
+	public void close() throws IOException
+	{
+		try
+		{
+			if (rowsWritten != height)
+				throw new IOException("Only " + rowsWritten + " of " + height + " rows were written.");
+			if (blockRows > 0)
+				submitBlock();
+			while (!pending.isEmpty())
+				writeBlock(join(pending.poll()));
+
+			idat.write(new byte[] { 0x03, 0x00 }); // An empty fixed-Huffman block marked as the last
+			int checksum = (int) adler;
+			idat.write(new byte[] { (byte) (checksum >>> 24), (byte) (checksum >>> 16), (byte) (checksum >>> 8), (byte) checksum });
+			idat.flush();
+			writeChunk("IEND", new byte[0], 0);
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	private void writeChunk(String type, byte[] data, int length) throws IOException
+	{
+		byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+		CRC32 crc = new CRC32();
+		crc.update(typeBytes);
+		crc.update(data, 0, length);
+
+		out.writeInt(length);
+		out.write(typeBytes);
+		out.write(data, 0, length);
+		out.writeInt((int) crc.getValue());
+	}
+
+	private static void writeInt(byte[] b, int offset, int v)
+	{
+		b[offset] = (byte) (v >>> 24);
+		b[offset + 1] = (byte) (v >>> 16);
+		b[offset + 2] = (byte) (v >>> 8);
+		b[offset + 3] = (byte) v;
+	}
+
+	/** Collects the compressed stream into IDAT chunks. **/
+	private class ChunkOutputStream extends OutputStream
+	{
+		private final byte[] buffer = new byte[CHUNK_SIZE];
+		private int size;
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			if (size == buffer.length)
+				flush();
+			buffer[size++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int offset, int length) throws IOException
+		{
+			while (length > 0)
+			{
+				if (size == buffer.length)
+					flush();
+				int n = Math.min(length, buffer.length - size);
+				System.arraycopy(b, offset, buffer, size, n);
+				size += n;
+				offset += n;
+				length -= n;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException
+		{
+			if (size > 0)
+				writeChunk("IDAT", buffer, size);
+			size = 0;
+		}
+	}
+}
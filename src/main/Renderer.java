@@ -9,6 +9,7 @@ import java.awt.Dimension;
 import java.awt.Font;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
@@ -23,11 +24,14 @@ import java.awt.geom.AffineTransform;
 import java.awt.geom.Line2D;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
-import java.awt.image.DataBufferByte;
+import java.awt.image.VolatileImage;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import javax.imageio.ImageIO;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
@@ -38,17 +42,22 @@ import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JProgressBar;
 import javax.swing.KeyStroke;
+import javax.swing.SwingUtilities;
 import javax.swing.UIManager;
 import javax.swing.UnsupportedLookAndFeelException;
 import javax.swing.border.EmptyBorder;
 import javax.swing.filechooser.FileNameExtensionFilter;
 
 import main.Utils.Timer;
-import main.graphicalobjects.Renderable;
+import main.raster.ApertureStampCache;
+import main.raster.OffHeapImage;
+import main.raster.TiledRasteriser;
 import main.math.Vector2d;
 
 public class Renderer
 {
+	private static final int MAX_PREVIEW_SIZE = 4096; // Longest side in pixels of the preview shown of boards rendered in bands
+
 	private JFrame frame;
 	private GerberCanvas c;
 	private JProgressBar pbar;
@@ -67,6 +76,12 @@ public class Renderer
 	transient boolean loadedGerber = false;
 
 	private BufferedImage everything;
+	private int previewScale = 1; // Board pixels per pixel of everything
+	private ImagePyramid pyramid; // Of everything, for drawing it zoomed out
+	private TileCache tiles; // For drawing it zoomed in, or null
+	private long visibleLayers; // Bit i is set if layer i is shown
+	private StripRenderer strips; // Set when the board is too large to render whole, and must be exported in bands
+	private ForkJoinPool renderPool; // Also compresses exports
 	private Rectangle2D bounds;
 	
 	private Unit units = Unit.MM;
@@ -86,7 +101,7 @@ public class Renderer
 		// if (renderOffset.y < 0)
 		// renderOffset.y = 0;
 
-		c.repaint();
+		c.repaint(); // The canvas works out what has changed
 	}
 
 	public void createWindow()
@@ -148,19 +163,60 @@ public class Renderer
 							return;
 					}
 
+					// Rendering bands and compressing can take minutes, so it is done off the event thread, with one export at a time:
+					JMenuItem exportItem = (JMenuItem) e.getSource();
+					exportItem.setEnabled(false);
 					label.setText("Saving output image...");
 					pbar.setValue(0);
 					Utils.log("Saving output image...");
-					try
-					{
-						ImageIO.write(everything, "png", selectedFile);
-					}
-					catch (IOException ex)
+					File file = selectedFile;
+					Thread exporter = new Thread(new Runnable()
 					{
-						ex.printStackTrace();
-					}
-					pbar.setValue(100);
-					label.setText("Done.");
+						@Override
+						public void run()
+						{
+							String message = "Done.";
+							try
+							{
+								Timer.tic();
+								if (strips != null)
+								{
+									strips.export(file, renderPool, new StripRenderer.BandListener()
+									{
+										@Override
+										public void bandRendered(BufferedImage band, int top)
+										{
+											showProgress("Saving output image...", (int) (100L * (top + band.getHeight()) / strips.getHeight()));
+										}
+									});
+								}
+								else
+								{
+									try (PngStreamWriter png = new PngStreamWriter(new BufferedOutputStream(new FileOutputStream(file)), everything.getWidth(),
+											everything.getHeight(), renderPool))
+									{
+										png.writeRows(everything);
+									}
+								}
+								Utils.log(String.format("Export time: %.2fs", (Timer.toc() * 0.001)));
+							}
+							catch (IOException ex)
+							{
+								ex.printStackTrace();
+								message = "Could not save output image.";
+							}
+							showProgress(message, 100);
+							SwingUtilities.invokeLater(new Runnable()
+							{
+								@Override
+								public void run()
+								{
+									exportItem.setEnabled(true);
+								}
+							});
+						}
+					}, "Exporter");
+					exporter.start();
 				}
 			}
 		});
@@ -178,7 +234,7 @@ public class Renderer
 				else
 					units = Unit.MM;
 				
-				c.repaint();
+				c.repaintReadout();
 			}
 		});
 		menu.add(menuItem);
@@ -271,7 +327,7 @@ public class Renderer
 				mousePosition.x = e.getX();
 				mousePosition.y = e.getY();
 
-				c.repaint();
+				c.repaintReadout();
 			}
 
 			@Override
@@ -291,6 +347,19 @@ public class Renderer
 		frame.setVisible(true);
 	}
 
+	public void showProgress(String message, int percent)
+	{
+		SwingUtilities.invokeLater(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				label.setText(message);
+				pbar.setValue(percent);
+			}
+		});
+	}
+
 	public void addLayers(Layer... layers)
 	{
 		pbar.setMaximum(100);
@@ -305,8 +374,7 @@ public class Renderer
 			if (l == null)
 				continue;
 
-			Timer.tic();
-			Rectangle2D layerBounds = l.calculateBounds();
+			Rectangle2D layerBounds = l.getBounds();
 			if (layerBounds.getMinX() < minX)
 				minX = layerBounds.getMinX();
 			if (layerBounds.getMinY() < minY)
@@ -315,85 +383,74 @@ public class Renderer
 				maxX = layerBounds.getMaxX();
 			if (layerBounds.getMaxY() > maxY)
 				maxY = layerBounds.getMaxY();
-			Utils.log(String.format("Bounds calc time: %.3fs", (Timer.toc() * 0.001)));
 		}
 		int width = (int) (maxX - minX) + Config.exportBorderSize * 2 + 1; // +1 provides additional pixel for anti-aliasing to flow into
 		int height = (int) (maxY - minY) + Config.exportBorderSize * 2 + 1;
 
-		Object dstData;
-		int color, shift;
-		if (Config.use16BitColor)
+		ApertureStampCache stampCache = new ApertureStampCache(Config.stampCacheSize * 1000000L);
+		renderPool = new ForkJoinPool(Config.renderThreads > 0 ? Config.renderThreads : Runtime.getRuntime().availableProcessors());
+		TiledRasteriser rasteriser = new TiledRasteriser(renderPool, Config.renderTileSize, stampCache);
+
+		// Flip, and compensate for layer origin:
+		double originX = -minX + Config.exportBorderSize;
+		double originY = height + minY - Config.exportBorderSize;
+
+		int imageType = Config.use16BitColor ? BufferedImage.TYPE_USHORT_555_RGB : BufferedImage.TYPE_INT_RGB;
+		// The image and the pyramid built over it, whose levels add a third again as many INT_RGB pixels:
+		long imageBytes = (long) width * height * (Config.use16BitColor ? 2 : 4) + ImagePyramid.levelBytes(width, height);
+		if (imageBytes > Config.maxImageSize * 1000000L || (long) width * height > Integer.MAX_VALUE - 8)
 		{
-			everything = new BufferedImage(width, height, BufferedImage.TYPE_USHORT_555_RGB);
-			dstData = new short[width * height];
-			color = 0x1F;
-			shift = -3;
+			// Too large to hold whole: show a reduced preview, rendered a band at a time like the export will be
+			OffHeapImage store = null;
+			if (Config.offHeapImage)
+			{
+				try
+				{
+					store = new OffHeapImage(width, height, imageType);
+				}
+				catch (IOException e)
+				{
+					Utils.warn("Could not map a file for the image, so it will be rendered again on export: " + e);
+				}
+			}
+			strips = new StripRenderer(layers, rasteriser, width, height, Config.renderTileSize, imageType, originX, originY, store);
+			previewScale = (Math.max(width, height) + MAX_PREVIEW_SIZE - 1) / MAX_PREVIEW_SIZE;
+			Utils.log(String.format("Board is %dx%d pixels; showing a 1/%d preview, and exporting in bands", width, height, previewScale));
+
+			Timer.tic();
+			try
+			{
+				everything = strips.renderPreview(previewScale);
+			}
+			catch (IOException e)
+			{
+				throw new RuntimeException(e); // Nothing is written while previewing
+			}
+			Utils.log(String.format("Preview render time: %.2fs", (Timer.toc() * 0.001)));
+			stampCache.logStatistics();
 		}
 		else
 		{
-			everything = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-			dstData = new int[width * height];
-			color = 0xFF;
-			shift = 0;
-		}
-		
-		for (int layerIndex = 0; layerIndex < layers.length; layerIndex++)
-		{
-			Layer l = layers[layerIndex];
-			if (l == null)
-				continue;
+			// Layers are rendered straight into the pixels of the combined image, one colour channel each:
+			everything = new BufferedImage(width, height, imageType);
+			int channel = 0;
 
-			Timer.tic();
+			for (int layerIndex = 0; layerIndex < layers.length; layerIndex++)
+			{
+				Layer l = layers[layerIndex];
+				if (l == null)
+					continue;
 
-			BufferedImage bufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
-			Graphics2D layerG2D = (Graphics2D) bufferedImage.getGraphics();
-			layerG2D.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+				Timer.tic();
 
-			// Flip:
-			layerG2D.translate(0, height);
-			layerG2D.scale(1, -1);
+				rasteriser.rasterise(l.objects, l.getIndex(), everything, channel++, originX, originY);
 
-			// Compensate for layer origin:
-			layerG2D.translate(-minX + Config.exportBorderSize, -minY + Config.exportBorderSize);
+				Utils.log(String.format("Layer render time: %.2fs", (Timer.toc() * 0.001)));
+				stampCache.logStatistics();
 
-			layerG2D.setColor(Color.WHITE);
-			for (Renderable r : l.objects)
-				r.render(layerG2D);
-			
-			Utils.log(String.format("Layer render time: %.2fs", (Timer.toc() * 0.001)));
-			
-//			 if (layerIndex == 0)
-//				 bufferedImage = Utils.blur(bufferedImage, 1);
-//			 else if (layerIndex == 2)
-//				 bufferedImage = Utils.blur(bufferedImage, 1);
-
-			// Composite onto existing image:
-			Timer.tic();
-			byte[] src = ((DataBufferByte) bufferedImage.getData().getDataBuffer()).getData();
-			if (Config.use16BitColor)
-			{
-				for (int pixelIndex = 0; pixelIndex < width * height; pixelIndex++)
-				{
-					if (shift < 0)
-						((short[]) dstData)[pixelIndex] |= (src[pixelIndex] >> -shift) & color;
-					else
-						((short[]) dstData)[pixelIndex] |= (src[pixelIndex] << shift) & color;
-				}
-				color <<= 5;
-				shift += 5;
+				pbar.setValue(100 * (layerIndex + 1) / (layers.length + 1));
 			}
-			else
-			{
-				for (int pixelIndex = 0; pixelIndex < width * height; pixelIndex++)
-					((int[]) dstData)[pixelIndex] |= (src[pixelIndex] << shift) & color;
-				color <<= 8;
-				shift += 8;
-			}
-			Utils.log(String.format("Layer composite time: %.2fs", (Timer.toc() * 0.001)));
-
-			pbar.setValue(100 * (layerIndex + 1) / (layers.length + 1));
 		}
-		everything.getRaster().setDataElements(0, 0, width, height, dstData);
 
 		Utils.log(String.format("Bounds: x: %f, y: %f, X: %f, Y: %f", minX, minY, maxX, maxY));
 		bounds = new Rectangle2D.Double(minX, minY, maxX - minX, maxY - minY);
@@ -407,6 +464,24 @@ public class Renderer
 
 		System.gc();
 
+		Runnable repaint = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				c.repaintBoard();
+			}
+		};
+		pyramid = new ImagePyramid(everything, previewScale, renderPool, repaint);
+		for (int layerIndex = 0; layerIndex < layers.length && layerIndex < Long.SIZE; layerIndex++)
+		{
+			if (layers[layerIndex] != null)
+				visibleLayers |= 1L << layerIndex;
+		}
+		if (Config.viewportRendering)
+			tiles = new TileCache(layers, rasteriser, imageType, originX, originY, width, height, previewScale, Config.viewTileSize,
+					Config.tileCacheSize * 1000000L, repaint);
+
 		updateRenderOffset();
 
 		loadedGerber = true;
@@ -418,9 +493,17 @@ public class Renderer
 	public class GerberCanvas extends JPanel
 	{
 		private static final long serialVersionUID = 1L;
+		private static final int READOUT_HEIGHT = 90; // Strip along the top holding the cursor position, memory use and tile cache counters
 
 		private Runtime runtime = Runtime.getRuntime();
 
+		// Everything but the readout is drawn into base, and only drawn again once the view or what is shown of the board has changed. When the
+		// view has only moved by whole pixels, as when dragging, base is scrolled instead and just the strips uncovered are drawn.
+		private VolatileImage base;
+		private final AtomicInteger boardVersion = new AtomicInteger(); // Bumped whenever base needs drawing again
+		private int baseVersion = -1; // Version base was last drawn at
+		private double baseX, baseY, baseScale; // View base was last drawn at
+
 		public GerberCanvas()
 		{
 			super(true);
@@ -432,21 +515,107 @@ public class Renderer
 			return new Dimension(1920, 1080);
 		}
 
+		/** Redraws everything, for when what is shown of the board has changed. Safe to call from any thread. **/
+		public void repaintBoard()
+		{
+			boardVersion.incrementAndGet();
+			repaint();
+		}
+
+		/** Redraws just the readout over the cached board. **/
+		public void repaintReadout()
+		{
+			repaint(0, 0, getWidth(), READOUT_HEIGHT);
+		}
+
 		@Override
 		protected void paintComponent(Graphics g)
 		{
-			super.paintComponent(g);
-
 			Graphics2D graphics2D = (Graphics2D) g;
 
+			if (!loadedGerber)
+			{
+				paintBoard(graphics2D);
+				return;
+			}
+
+			do
+			{
+				if (base == null || base.getWidth() != getWidth() || base.getHeight() != getHeight())
+				{
+					base = createVolatileImage(getWidth(), getHeight());
+					if (base == null) // Not displayable, so there is no surface to cache in
+					{
+						paintBoard(graphics2D);
+						break;
+					}
+					baseVersion = -1;
+				}
+
+				int status = base.validate(getGraphicsConfiguration());
+				if (status == VolatileImage.IMAGE_INCOMPATIBLE)
+				{
+					base = createVolatileImage(getWidth(), getHeight());
+					if (base == null)
+					{
+						paintBoard(graphics2D);
+						break;
+					}
+					baseVersion = -1;
+				}
+				else if (status == VolatileImage.IMAGE_RESTORED)
+					baseVersion = -1;
+
+				int version = boardVersion.get();
+				if (baseVersion != version || scale != baseScale || renderOffset.x != baseX || renderOffset.y != baseY)
+				{
+					Graphics2D baseGraphics = base.createGraphics();
+					double dx = renderOffset.x - baseX, dy = renderOffset.y - baseY;
+					if (baseVersion == version && scale == baseScale && dx == Math.rint(dx) && dy == Math.rint(dy) && Math.abs(dx) < getWidth()
+							&& Math.abs(dy) < getHeight())
+						scrollBoard(baseGraphics, (int) dx, (int) dy);
+					else
+						paintBoard(baseGraphics);
+					baseGraphics.dispose();
+					baseVersion = version;
+					baseX = renderOffset.x;
+					baseY = renderOffset.y;
+					baseScale = scale;
+				}
+				g.drawImage(base, 0, 0, null); // Only the clip, which is just the readout when the mouse moves
+			}
+			while (base.contentsLost());
+
+			paintReadout(graphics2D);
+		}
+
+		/** Moves what is drawn on the board by whole pixels and draws the strips along the edges that it uncovers. **/
+		private void scrollBoard(Graphics2D graphics2D, int dx, int dy)
+		{
+			int width = getWidth(), height = getHeight();
+			graphics2D.copyArea(0, 0, width, height, dx, dy);
+
+			Rectangle[] exposed = { new Rectangle(dx > 0 ? 0 : width + dx, 0, Math.abs(dx), height), new Rectangle(0, dy > 0 ? 0 : height + dy, width, Math.abs(dy)) };
+			for (Rectangle strip : exposed)
+			{
+				if (strip.isEmpty())
+					continue;
+				Graphics2D stripGraphics = (Graphics2D) graphics2D.create();
+				stripGraphics.clip(strip);
+				paintBoard(stripGraphics);
+				stripGraphics.dispose();
+			}
+		}
+
+		private void paintBoard(Graphics2D graphics2D)
+		{
 			AffineTransform transform = graphics2D.getTransform();
 
 			graphics2D.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-			graphics2D.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
 
 			// Draw background:
-			g.setColor(Color.BLACK);
-			g.fillRect(0, 0, getWidth(), getHeight());
+			graphics2D.setColor(Color.BLACK);
+			graphics2D.fillRect(0, 0, getWidth(), getHeight());
 
 			if (!loadedGerber)
 				return;
@@ -456,7 +625,12 @@ public class Renderer
 				graphics2D.scale(scale, scale);
 				// graphics2D.translate(0, -getHeight());
 
-				graphics2D.drawImage(everything, 0, 0, null);
+				pyramid.draw(graphics2D, scale);
+				if (tiles != null && scale * previewScale > 1)
+				{
+					// Zoomed in past the image's resolution: draw tiles rendered from the layers over it, as they become ready
+					tiles.draw(graphics2D, getWidth(), getHeight(), renderOffset.x, renderOffset.y, scale, visibleLayers);
+				}
 
 				if (Config.drawOuterBoundingBox)
 				{
@@ -479,9 +653,13 @@ public class Renderer
 //			graphics2D.drawLine(0, -10, 0, 10);
 
 			graphics2D.setTransform(transform);
+		}
 
-			g.setFont(new Font("Consolas", Font.PLAIN, 20));
-			g.setColor(Color.WHITE);
+		private void paintReadout(Graphics2D graphics2D)
+		{
+			graphics2D.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+			graphics2D.setFont(new Font("Consolas", Font.PLAIN, 20));
+			graphics2D.setColor(Color.WHITE);
 			
 			double mouseX_canvasPixels = (mousePosition.x - currentOffset.x) / scale;
 			double mouseY_canvasPixels = (mousePosition.y - currentOffset.y) / scale;
@@ -503,6 +681,9 @@ public class Renderer
 				graphics2D.drawString(String.format("Y: %.0fmil", (mouseYFromGerberOrigin_gerberPixels / Config.rasterDPI) * 1E3), 5, 40);
 			}
 			graphics2D.drawString(String.format("RAM usage: %.0fMB (reserved: %.0fMB)", (runtime.totalMemory() - runtime.freeMemory()) * 1E-6, runtime.totalMemory() * 1E-6), 5, 60);
+			if (tiles != null)
+				graphics2D.drawString(String.format("Tiles: %.0fMB, %d hits, %d misses, %d evictions", tiles.getBytes() * 1E-6, tiles.getHits(), tiles.getMisses(),
+						tiles.getEvictions()), 5, 80);
 //			graphics2D.drawString(String.format("Mem free: %.0fMB", (runtime.freeMemory()) * 1E-6), 5, 80);
 		}
 	}
@@ -0,0 +1,193 @@
+package main;
+
+import java.awt.geom.Rectangle2D;
+import java.util.BitSet;
+import java.util.List;
+
+import main.graphicalobjects.Renderable;
+
+/**
+ * Uniform grid over the bounds of a layer's objects, bulk loaded once the layer has been processed. Each object's bounds are read once and kept
+ * in primitive arrays, so range queries neither call getBounds() nor allocate. Matches are reported as a bitset of object indices, which visits
+ * them in draw order. Objects spanning many cells are kept in a separate list rather than being copied into every cell they touch.
+ */
+public class SpatialIndex
+{
+	private static final int TARGET_OBJECTS_PER_CELL = 8;
+	private static final int MAX_CELLS_PER_OBJECT = 64;
+	private static final int MAX_CELLS = 1 << 22;
+
+	private final int size;
+	private final double[] minX, minY, maxX, maxY;
+
+	private final double gridX, gridY, cellSize;
+	private final int cellsX, cellsY;
+	private final int[] cellStart; // Objects in cell c are cellObjects[cellStart[c] .. cellStart[c + 1]), in draw order
+	private final int[] cellObjects;
+	private final int[] largeObjects;
+
+	public SpatialIndex(List<Renderable> objects)
+	{
+		size = objects.size();
+		minX = new double[size];
+		minY = new double[size];
+		maxX = new double[size];
+		maxY = new double[size];
+
+		double extentMinX = Double.POSITIVE_INFINITY, extentMinY = Double.POSITIVE_INFINITY;
+		double extentMaxX = Double.NEGATIVE_INFINITY, extentMaxY = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < size; i++)
+		{
+			Rectangle2D bounds = objects.get(i).getBounds();
+			minX[i] = bounds.getMinX();
+			minY[i] = bounds.getMinY();
+			maxX[i] = bounds.getMaxX();
+			maxY[i] = bounds.getMaxY();
+
+			extentMinX = Math.min(extentMinX, minX[i]);
+			extentMinY = Math.min(extentMinY, minY[i]);
+			extentMaxX = Math.max(extentMaxX, maxX[i]);
+			extentMaxY = Math.max(extentMaxY, maxY[i]);
+		}
+
+		if (size == 0)
+		{
+			gridX = gridY = 0;
+			cellSize = 1;
+			cellsX = cellsY = 1;
+			cellStart = new int[2];
+			cellObjects = new int[0];
+			largeObjects = new int[0];
+			return;
+		}
+
+		// Size cells so that an evenly spread layer has a handful of objects in each:
+		double width = Math.max(extentMaxX - extentMinX, 1);
+		double height = Math.max(extentMaxY - extentMinY, 1);
+		double numCells = Math.min(Math.max(size / TARGET_OBJECTS_PER_CELL, 1), MAX_CELLS);
+		gridX = extentMinX;
+		gridY = extentMinY;
+		cellSize = Math.max(Math.sqrt(width * height / numCells), 1);
+		cellsX = Math.min((int) (width / cellSize) + 1, MAX_CELLS);
+		cellsY = Math.min((int) (height / cellSize) + 1, MAX_CELLS / cellsX);
+
+		// Count, then fill, the entries of each cell:
+		int[] counts = new int[cellsX * cellsY + 1];
+		int numLarge = 0;
+		for (int i = 0; i < size; i++)
+		{
+			int x0 = cellX(minX[i]), x1 = cellX(maxX[i]);
+			int y0 = cellY(minY[i]), y1 = cellY(maxY[i]);
+			if ((x1 - x0 + 1) * (y1 - y0 + 1) > MAX_CELLS_PER_OBJECT)
+			{
+				numLarge++;
+				continue;
+			}
+
+			for (int y = y0; y <= y1; y++)
+			{
+				for (int x = x0; x <= x1; x++)
+					counts[y * cellsX + x + 1]++;
+			}
+		}
+
+		cellStart = new int[cellsX * cellsY + 1];
+		for (int c = 0; c < cellsX * cellsY; c++)
+			cellStart[c + 1] = cellStart[c] + counts[c + 1];
+
+		int[] next = counts; // Reused as the fill position of each cell
+		System.arraycopy(cellStart, 0, next, 0, cellStart.length);
+		cellObjects = new int[cellStart[cellsX * cellsY]];
+		largeObjects = new int[numLarge];
+		numLarge = 0;
+		for (int i = 0; i < size; i++)
+		{
+			int x0 = cellX(minX[i]), x1 = cellX(maxX[i]);
+			int y0 = cellY(minY[i]), y1 = cellY(maxY[i]);
+			if ((x1 - x0 + 1) * (y1 - y0 + 1) > MAX_CELLS_PER_OBJECT)
+			{
+				largeObjects[numLarge++] = i;
+				continue;
+			}
+
+			for (int y = y0; y <= y1; y++)
+			{
+				for (int x = x0; x <= x1; x++)
+					cellObjects[next[y * cellsX + x]++] = i;
+			}
+		}
+	}
+
+	private int cellX(double x)
+	{
+		return Math.max(0, Math.min(cellsX - 1, (int) Math.floor((x - gridX) / cellSize)));
+	}
+
+	private int cellY(double y)
+	{
+		return Math.max(0, Math.min(cellsY - 1, (int) Math.floor((y - gridY) / cellSize)));
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public double getMinX(int object)
+	{
+		return minX[object];
+	}
+
+	public double getMinY(int object)
+	{
+		return minY[object];
+	}
+
+	public double getMaxX(int object)
+	{
+		return maxX[object];
+	}
+
+	public double getMaxY(int object)
+	{
+		return maxY[object];
+	}
+
+	/**
+	 * Finds every object whose bounds overlap the given rectangle (edges included), in the same pixel coordinates as Renderable.getBounds().
+	 * The result is cleared first; iterating its set bits in ascending order visits the matches in draw order.
+	 */
+	public void query(double queryMinX, double queryMinY, double queryMaxX, double queryMaxY, BitSet result)
+	{
+		result.clear();
+		if (size == 0)
+			return;
+
+		int x0 = cellX(queryMinX), x1 = cellX(queryMaxX);
+		int y0 = cellY(queryMinY), y1 = cellY(queryMaxY);
+		for (int y = y0; y <= y1; y++)
+		{
+			for (int x = x0; x <= x1; x++)
+			{
+				int cell = y * cellsX + x;
+				for (int e = cellStart[cell]; e < cellStart[cell + 1]; e++)
+				{
+					int i = cellObjects[e];
+					if (overlaps(i, queryMinX, queryMinY, queryMaxX, queryMaxY))
+						result.set(i);
+				}
+			}
+		}
+
+		for (int i : largeObjects)
+		{
+			if (overlaps(i, queryMinX, queryMinY, queryMaxX, queryMaxY))
+				result.set(i);
+		}
+	}
+
+	private boolean overlaps(int i, double queryMinX, double queryMinY, double queryMaxX, double queryMaxY)
+	{
+		return minX[i] <= queryMaxX && maxX[i] >= queryMinX && minY[i] <= queryMaxY && maxY[i] >= queryMinY;
+	}
+}
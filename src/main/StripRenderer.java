@@ -0,0 +1,175 @@
+package main;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import main.raster.OffHeapImage;
+import main.raster.TiledRasteriser;
+
+/**
+ * Renders boards whose combined image would not fit in memory one horizontal band of rows at a time. Every layer is drawn into its channel of the
+ * band, from only the objects its spatial index finds reaching the band, and the band is handed on and then reused for the next one, so memory
+ * follows the width of the board times the band height rather than its area. Bands come out exactly as that part of the whole image would.
+ *
+ * Given an OffHeapImage, the first pass over the board also keeps every band in it, and later passes read the bands back rather than rendering
+ * them again.
+ */
+public class StripRenderer
+{
+	public interface BandListener
+	{
+		/** Called with each finished band, in order from the top. The band's first row is row top of the whole image. **/
+		void bandRendered(BufferedImage band, int top) throws IOException;
+	}
+
+	private final Layer[] layers;
+	private final TiledRasteriser rasteriser;
+	private final int width, height, bandHeight, imageType;
+	private final double originX, originY;
+	private final OffHeapImage store; // Or null
+	private boolean stored; // Whether every band is in the store
+
+	/**
+	 * Renders layers, which may contain nulls, to an image of the given size and type, with the same mapping as TiledRasteriser. The store, if not
+	 * null, must be of the same size and type.
+	 */
+	public StripRenderer(Layer[] layers, TiledRasteriser rasteriser, int width, int height, int bandHeight, int imageType, double originX, double originY,
+			OffHeapImage store)
+	{
+		this.store = store;
+		this.layers = layers;
+		this.rasteriser = rasteriser;
+		this.width = width;
+		this.height = height;
+		this.bandHeight = bandHeight;
+		this.imageType = imageType;
+		this.originX = originX;
+		this.originY = originY;
+	}
+
+	public void render(BandListener listener) throws IOException
+	{
+		BufferedImage band = null;
+		for (int top = 0; top < height; top += bandHeight)
+		{
+			int rows = Math.min(bandHeight, height - top);
+			if (band == null || band.getHeight() != rows)
+				band = new BufferedImage(width, rows, imageType);
+
+			if (stored)
+				store.read(band, top);
+			else
+			{
+				clear(band);
+				int channel = 0;
+				for (Layer l : layers)
+				{
+					if (l != null)
+						rasteriser.rasterise(l.objects, l.getIndex(), band, top, channel++, originX, originY);
+				}
+				if (store != null)
+					store.write(band, top);
+			}
+			listener.bandRendered(band, top);
+		}
+		stored = store != null;
+	}
+
+	/**
+	 * Renders the board straight into a PNG file, which is compressed on the pool while later bands render. progress, if not null, is told of each
+	 * band once it is handed to the file.
+	 */
+	public void export(File file, ForkJoinPool pool, BandListener progress) throws IOException
+	{
+		try (PngStreamWriter png = new PngStreamWriter(new BufferedOutputStream(new FileOutputStream(file)), width, height, pool))
+		{
+			render(new BandListener()
+			{
+				@Override
+				public void bandRendered(BufferedImage band, int top) throws IOException
+				{
+					png.writeRows(band);
+					if (progress != null)
+						progress.bandRendered(band, top);
+				}
+			});
+		}
+	}
+
+	public int getHeight()
+	{
+		return height;
+	}
+
+	/** Renders the board reduced by a whole factor, each preview pixel being the mean of the block of pixels it covers. **/
+	public BufferedImage renderPreview(int factor) throws IOException
+	{
+		int previewWidth = (width + factor - 1) / factor;
+		int previewHeight = (height + factor - 1) / factor;
+		BufferedImage preview = new BufferedImage(previewWidth, previewHeight, BufferedImage.TYPE_INT_RGB);
+		int[] previewData = ((DataBufferInt) preview.getRaster().getDataBuffer()).getData();
+		int[] sums = new int[previewWidth * 3]; // Red, green and blue of each preview pixel in the row being summed
+
+		boolean is555 = imageType == BufferedImage.TYPE_USHORT_555_RGB;
+		render(new BandListener()
+		{
+			@Override
+			public void bandRendered(BufferedImage band, int top)
+			{
+				int[] intData = is555 ? null : ((DataBufferInt) band.getRaster().getDataBuffer()).getData();
+				short[] shortData = is555 ? ((DataBufferUShort) band.getRaster().getDataBuffer()).getData() : null;
+				for (int y = 0; y < band.getHeight(); y++)
+				{
+					for (int x = 0, i = y * width; x < width; x++, i++)
+					{
+						int s = x / factor * 3;
+						if (is555)
+						{
+							int rgb = shortData[i];
+							sums[s] += PngStreamWriter.expand5(rgb >>> 10);
+							sums[s + 1] += PngStreamWriter.expand5(rgb >>> 5);
+							sums[s + 2] += PngStreamWriter.expand5(rgb);
+						}
+						else
+						{
+							int rgb = intData[i];
+							sums[s] += rgb >>> 16 & 0xFF;
+							sums[s + 1] += rgb >>> 8 & 0xFF;
+							sums[s + 2] += rgb & 0xFF;
+						}
+					}
+
+					// At the end of a block of rows, its means make a row of the preview:
+					int row = top + y;
+					if ((row + 1) % factor == 0 || row == height - 1)
+					{
+						int blockHeight = row % factor + 1;
+						for (int px = 0; px < previewWidth; px++)
+						{
+							int count = Math.min(factor, width - px * factor) * blockHeight;
+							int s = px * 3;
+							previewData[row / factor * previewWidth + px] = sums[s] / count << 16 | sums[s + 1] / count << 8 | sums[s + 2] / count;
+						}
+						Arrays.fill(sums, 0);
+					}
+				}
+			}
+		});
+		return preview;
+	}
+
+	private static void clear(BufferedImage band)
+	{
+		if (band.getType() == BufferedImage.TYPE_USHORT_555_RGB)
+			Arrays.fill(((DataBufferUShort) band.getRaster().getDataBuffer()).getData(), (short) 0);
+		else
+			Arrays.fill(((DataBufferInt) band.getRaster().getDataBuffer()).getData(), 0);
+	}
+}
@@ -0,0 +1,361 @@
+package main;
+
+import java.awt.Graphics2D;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import main.raster.TiledRasteriser;
+
+/**
+ * Tiles of the board rendered from the layers at the resolution it is viewed at, for when the canvas is zoomed in past the resolution of the
+ * image made at load. Tiles are square and come in levels: at level z each tile pixel covers 2^-z board pixels, and the view is drawn from the
+ * level whose pixels are nearest in size to, but not larger than, a screen pixel, as with ImagePyramid. A tile is keyed by its level, its
+ * position and the set of layers shown in it.
+ *
+ * Drawing never waits for rendering. Tiles of the view not yet rendered are queued for a thread of their own, those nearest the middle first,
+ * followed by the row or column just beyond the view in the direction it is panning. Until a tile arrives, the finest cached tile of a coarser
+ * level that covers it is drawn in its place. Each new view replaces whatever of the queue has not started. Tiles are evicted least recently
+ * drawn first once the cache holds more than its byte budget.
+ */
+public class TileCache
+{
+	private static class Key
+	{
+		final int level, x, y;
+		final long layers; // Bit i is set if layer i is shown
+
+		Key(int level, int x, int y, long layers)
+		{
+			this.level = level;
+			this.x = x;
+			this.y = y;
+			this.layers = layers;
+		}
+
+		/** Returns the tile of a coarser level that covers this one. **/
+		Key ancestor(int level)
+		{
+			int shift = this.level - level;
+			return new Key(level, x >> shift, y >> shift, layers);
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof Key))
+				return false;
+			Key k = (Key) o;
+			return k.level == level && k.x == x && k.y == y && k.layers == layers;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return ((level * 31 + x) * 31 + y) * 31 + Long.hashCode(layers);
+		}
+	}
+
+	private final Layer[] layers;
+	private final TiledRasteriser rasteriser;
+	private final int imageType;
+	private final double originX, originY; // Mapping from Gerber pixels to board pixels, as for the image made at load
+	private final int boardWidth, boardHeight; // In board pixels
+	private final int baseScale; // Board pixels per pixel of the image made at load
+	private final int tileSize;
+	private final long maxBytes;
+	private final Runnable rendered;
+
+	private final ExecutorService executor;
+	private final LinkedHashMap<Key, BufferedImage> tiles = new LinkedHashMap<>(64, 0.75f, true);
+	private long bytes = 0;
+	private long hits = 0, misses = 0, evictions = 0;
+	private final ArrayDeque<Key> queue = new ArrayDeque<>(); // Tiles waiting to be rendered, next first
+	private Key rendering; // Tile being rendered, or null
+	private boolean draining; // Whether a task is taking tiles off the queue
+
+	// View last drawn, for queueing only when it changes:
+	private int viewWidth, viewHeight;
+	private double viewX, viewY, viewScale;
+	private long viewLayers;
+
+	/**
+	 * Renders tiles of layers, which may contain nulls, into images of the given type (see ChannelCompositor). rendered is run, on the cache's
+	 * thread, each time a tile is ready.
+	 */
+	public TileCache(Layer[] layers, TiledRasteriser rasteriser, int imageType, double originX, double originY, int boardWidth, int boardHeight,
+			int baseScale, int tileSize, long maxBytes, Runnable rendered)
+	{
+		this.layers = layers;
+		this.rasteriser = rasteriser;
+		this.imageType = imageType;
+		this.originX = originX;
+		this.originY = originY;
+		this.boardWidth = boardWidth;
+		this.boardHeight = boardHeight;
+		this.baseScale = baseScale;
+		this.tileSize = tileSize;
+		this.maxBytes = maxBytes;
+		this.rendered = rendered;
+
+		executor = Executors.newSingleThreadExecutor(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "Tile renderer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Draws what there is of a view, width by height screen pixels, of the given layers, into graphics in board pixels like ImagePyramid.draw(),
+	 * and queues the tiles missing from it. A view is given, like the canvas, by its offset and scale: board pixel b is shown at screen pixel
+	 * offset + b * scale. Parts with no tile of a level finer than the image made at load are left as they were.
+	 */
+	public void draw(Graphics2D g, int width, int height, double offsetX, double offsetY, double scale, long visibleLayers)
+	{
+		// The level with no more than one pixel per screen pixel, and the tiles it has in view:
+		int level = scaleLevel(scale);
+		double tileBoardSize = tileSize / Math.scalb(1.0, level); // Board pixels across a tile
+		int lastX = (int) ((boardWidth - 1) / tileBoardSize), lastY = (int) ((boardHeight - 1) / tileBoardSize);
+		int left = Math.max((int) Math.floor(-offsetX / scale / tileBoardSize), 0);
+		int top = Math.max((int) Math.floor(-offsetY / scale / tileBoardSize), 0);
+		int right = Math.min((int) Math.floor((width - offsetX) / scale / tileBoardSize), lastX);
+		int bottom = Math.min((int) Math.floor((height - offsetY) / scale / tileBoardSize), lastY);
+		if (left > right || top > bottom)
+			return;
+
+		List<Key> found = new ArrayList<>();
+		List<BufferedImage> images = new ArrayList<>();
+		synchronized (this)
+		{
+			if (width != viewWidth || height != viewHeight || offsetX != viewX || offsetY != viewY || scale != viewScale || visibleLayers != viewLayers)
+			{
+				queueView(level, left, top, right, bottom, lastX, lastY, (width * 0.5 - offsetX) / scale, (height * 0.5 - offsetY) / scale, visibleLayers);
+				viewWidth = width;
+				viewHeight = height;
+				viewX = offsetX;
+				viewY = offsetY;
+				viewScale = scale;
+				viewLayers = visibleLayers;
+			}
+
+			// Tiles in view, after the ancestors standing in for those missing so that they are drawn over them:
+			LinkedHashSet<Key> ancestors = new LinkedHashSet<>();
+			for (int y = top; y <= bottom; y++)
+			{
+				for (int x = left; x <= right; x++)
+				{
+					Key key = new Key(level, x, y, visibleLayers);
+					if (tiles.containsKey(key))
+						found.add(key);
+					else
+					{
+						for (int l = level - 1; Math.scalb((double) baseScale, l) > 1; l--)
+						{
+							Key ancestor = key.ancestor(l);
+							if (tiles.containsKey(ancestor))
+							{
+								ancestors.add(ancestor);
+								break;
+							}
+						}
+					}
+				}
+			}
+			found.addAll(0, ancestors);
+			for (Key key : found)
+				images.add(tiles.get(key)); // Also marks it as recently used
+		}
+
+		AffineTransform transform = g.getTransform();
+		for (int i = 0; i < found.size(); i++)
+		{
+			Key key = found.get(i);
+			double s = Math.scalb(1.0, key.level);
+			g.translate(key.x * tileSize / s, key.y * tileSize / s);
+			g.scale(1 / s, 1 / s);
+			g.drawImage(images.get(i), 0, 0, null);
+			g.setTransform(transform);
+		}
+	}
+
+	/** Replaces the queue with the tiles missing from a view, given by its range of tiles and its middle in board pixels. **/
+	private void queueView(int level, int left, int top, int right, int bottom, int lastX, int lastY, double middleX, double middleY, long visibleLayers)
+	{
+		queue.clear();
+
+		List<Key> missing = new ArrayList<>();
+		for (int y = top; y <= bottom; y++)
+		{
+			for (int x = left; x <= right; x++)
+			{
+				Key key = new Key(level, x, y, visibleLayers);
+				if (tiles.containsKey(key))
+					hits++;
+				else
+				{
+					misses++;
+					missing.add(key);
+				}
+			}
+		}
+		double tileBoardSize = tileSize / Math.scalb(1.0, level);
+		missing.sort(new Comparator<Key>()
+		{
+			@Override
+			public int compare(Key a, Key b)
+			{
+				return Double.compare(distance(a), distance(b));
+			}
+
+			private double distance(Key k)
+			{
+				return Math.hypot((k.x + 0.5) * tileBoardSize - middleX, (k.y + 0.5) * tileBoardSize - middleY);
+			}
+		});
+
+		// Prefetch the tiles the view is moving towards, going by where its middle was last time:
+		if (scaleLevel(viewScale) == level && visibleLayers == viewLayers)
+		{
+			double lastMiddleX = (viewWidth * 0.5 - viewX) / viewScale, lastMiddleY = (viewHeight * 0.5 - viewY) / viewScale;
+			int column = middleX > lastMiddleX ? right + 1 : middleX < lastMiddleX ? left - 1 : -1;
+			int row = middleY > lastMiddleY ? bottom + 1 : middleY < lastMiddleY ? top - 1 : -1;
+			if (column >= 0 && column <= lastX)
+			{
+				for (int y = top; y <= bottom; y++)
+					missing.add(new Key(level, column, y, visibleLayers));
+			}
+			if (row >= 0 && row <= lastY)
+			{
+				for (int x = left; x <= right; x++)
+					missing.add(new Key(level, x, row, visibleLayers));
+			}
+		}
+
+		for (Key key : missing)
+		{
+			if (!tiles.containsKey(key) && !key.equals(rendering))
+				queue.add(key);
+		}
+
+		if (!queue.isEmpty() && !draining)
+		{
+			draining = true;
+			executor.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					drain();
+				}
+			});
+		}
+	}
+
+	/** Returns the least level whose pixels are no larger than a screen pixel at the given scale, that is, log2(scale) rounded up. **/
+	private static int scaleLevel(double scale)
+	{
+		if (scale <= 0) // No view yet
+			return Integer.MIN_VALUE;
+		int level = Math.getExponent(scale);
+		return scale > Math.scalb(1.0, level) ? level + 1 : level;
+	}
+
+	/** Renders tiles off the queue until it is empty. Runs on the cache's thread. **/
+	private void drain()
+	{
+		while (true)
+		{
+			Key key;
+			synchronized (this)
+			{
+				key = queue.poll();
+				rendering = key;
+				if (key == null)
+				{
+					draining = false;
+					return;
+				}
+			}
+
+			BufferedImage tile = render(key);
+
+			synchronized (this)
+			{
+				rendering = null;
+				if (tiles.put(key, tile) == null)
+					bytes += tileBytes();
+
+				Iterator<Map.Entry<Key, BufferedImage>> it = tiles.entrySet().iterator();
+				while (bytes > maxBytes && it.hasNext())
+				{
+					if (it.next().getValue() == tile)
+						continue;
+					bytes -= tileBytes();
+					it.remove();
+					evictions++;
+				}
+			}
+			rendered.run();
+		}
+	}
+
+	private BufferedImage render(Key key)
+	{
+		// A Gerber pixel x is at board pixel x + originX, so at tile pixel (x + originX) * s - key.x * tileSize:
+		double s = Math.scalb(1.0, key.level);
+		BufferedImage tile = new BufferedImage(tileSize, tileSize, imageType);
+		int channel = 0;
+		for (int i = 0; i < layers.length; i++)
+		{
+			Layer l = layers[i];
+			if (l == null)
+				continue;
+			if ((key.layers >>> i & 1) != 0)
+				rasteriser.rasterise(l.objects, l.getIndex(), tile, 0, channel, originX * s - key.x * tileSize, originY * s - key.y * tileSize, s);
+			channel++; // Hidden layers keep their channel, so colours stay the same
+		}
+		return tile;
+	}
+
+	private long tileBytes()
+	{
+		return (long) tileSize * tileSize * (imageType == BufferedImage.TYPE_USHORT_555_RGB ? 2 : 4);
+	}
+
+	/** Number of tiles of views that were already cached, counted once per view. **/
+	public synchronized long getHits()
+	{
+		return hits;
+	}
+
+	/** Number of tiles of views that had to be rendered, counted once per view. **/
+	public synchronized long getMisses()
+	{
+		return misses;
+	}
+
+	public synchronized long getEvictions()
+	{
+		return evictions;
+	}
+
+	public synchronized long getBytes()
+	{
+		return bytes;
+	}
+}
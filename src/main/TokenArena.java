@@ -0,0 +1,105 @@
+package main;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Compact store for the words of a Gerber file. Each word is kept as an offset/length slice into the source buffer rather than as a String, so
+ * tokenizing a file costs two ints per word. Words that were interrupted by whitespace or a delimiter cannot be described by a single slice;
+ * those are compacted into a small spill buffer and flagged with a negative offset.
+ */
+class TokenArena
+{
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private final ByteBuffer source;
+
+	private int[] offsets = new int[INITIAL_CAPACITY];
+	private int[] lengths = new int[INITIAL_CAPACITY];
+	private int numWords = 0;
+
+	private byte[] spill = new byte[0];
+	private int spillLength = 0;
+
+	TokenArena(ByteBuffer source)
+	{
+		this.source = source;
+	}
+
+	/** Adds the word source[start, end) and returns its index. **/
+	int add(int start, int end)
+	{
+		ensureCapacity();
+		offsets[numWords] = start;
+		lengths[numWords] = end - start;
+		return numWords++;
+	}
+
+	/** Adds the word source[start, end) with all whitespace and '%' delimiters removed and returns its index. **/
+	int addCompacted(int start, int end)
+	{
+		ensureCapacity();
+		if (spillLength + (end - start) > spill.length)
+			spill = Arrays.copyOf(spill, Math.max(spill.length * 2, spillLength + (end - start)));
+
+		int spillStart = spillLength;
+		for (int i = start; i < end; i++)
+		{
+			byte b = source.get(i);
+			if (!Character.isWhitespace(b & 0xFF) && b != '%')
+				spill[spillLength++] = b;
+		}
+
+		offsets[numWords] = ~spillStart;
+		lengths[numWords] = spillLength - spillStart;
+		return numWords++;
+	}
+
+	private void ensureCapacity()
+	{
+		if (numWords == offsets.length)
+		{
+			offsets = Arrays.copyOf(offsets, offsets.length * 2);
+			lengths = Arrays.copyOf(lengths, lengths.length * 2);
+		}
+	}
+
+	/** Discards all words, keeping the allocated storage for reuse. **/
+	void clear()
+	{
+		numWords = 0;
+		spillLength = 0;
+	}
+
+	int length(int word)
+	{
+		return lengths[word];
+	}
+
+	/** Returns the character at the given index of a word, or 0 if the index is past the end of the word. **/
+	char charAt(int word, int index)
+	{
+		if (index >= lengths[word])
+			return 0;
+
+		int offset = offsets[word];
+		if (offset < 0)
+			return (char) (spill[~offset + index] & 0xFF);
+		return (char) (source.get(offset + index) & 0xFF);
+	}
+
+	/** Materialises a word as a String. Only intended for the (rare) commands that need regex matching or logging. **/
+	String getString(int word)
+	{
+		int offset = offsets[word];
+		int length = lengths[word];
+		if (offset < 0)
+			return new String(spill, ~offset, length, StandardCharsets.ISO_8859_1);
+
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++)
+			bytes[i] = source.get(offset + i);
+		return new String(bytes, StandardCharsets.ISO_8859_1);
+	}
+}
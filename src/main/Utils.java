@@ -96,18 +96,19 @@ public class Utils
 		s.println("[" + level.toString() + "] " + o.toString());
 	}
 	
+	/** Simple stopwatch. Each thread has its own start time, so layers can be timed while loading in parallel. **/
 	public static class Timer
 	{
-		private static long start_ms;
+		private static final ThreadLocal<Long> start_ms = ThreadLocal.withInitial(System::currentTimeMillis);
 
 		public static void tic()
 		{
-			start_ms = System.currentTimeMillis();
+			start_ms.set(System.currentTimeMillis());
 		}
 
 		public static long toc()
 		{
-			return System.currentTimeMillis() - start_ms;
+			return System.currentTimeMillis() - start_ms.get();
 		}
 	}
 }
@@ -1,86 +1,63 @@
 package main.graphicalobjects;
 
-import java.awt.BasicStroke;
 import java.awt.Color;
 import java.awt.Graphics2D;
+import java.awt.Shape;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Area;
 import java.awt.geom.Rectangle2D;
 
-import main.Config;
 import main.GeometricPrimitives;
 import main.Layer.Modifiers;
 import main.Utils;
 import main.math.Vector2i;
 
-public class Aperture implements Renderable
+/**
+ * The geometry of an aperture, centred on the origin. One instance is shared by every flash of the aperture (see Flash), so it must not be
+ * modified once defined; the flash position is applied at draw time.
+ */
+public class Aperture
 {
 	private Modifiers modifiers; // TODO unused
-	private AffineTransform transform = null;
 	protected Area area = new Area();
-	
-	public Vector2i offset = new Vector2i(0, 0);
+	private volatile Rectangle2D areaBounds = null;
 	
 	public Aperture(Modifiers m)
 	{
 		this.modifiers = m;
 	}
 	
-	public Aperture clone()
-	{
-		Aperture a = new Aperture(modifiers.clone());
-		a.area = (Area) area.clone();
-		return a;
-	}
-	
-	private void pushTransform(Graphics2D g)
-	{
-		transform = g.getTransform();
-	}
-	
-	private void popTransform(Graphics2D g)
-	{
-		if (transform == null)
-			throw new RuntimeException("Pop requested but transform not pushed.");
-		g.setTransform(transform);
-	}
-	
-	@Override
-	public void render(Graphics2D g)
+	/** Fills the aperture centred on the given position (in nanometres). **/
+	public void render(Graphics2D g, int x, int y)
 	{
-		pushTransform(g);
-		g.translate(Utils.toPixels(offset.x), Utils.toPixels(offset.y));
+		AffineTransform transform = g.getTransform();
+		g.translate(Utils.toPixels(x), Utils.toPixels(y));
 		
 		g.setColor(Color.WHITE);
 		g.fill(area);
 		
-		if (Config.drawBoundingBoxes)
-		{
-			g.setColor(Color.ORANGE);
-			g.setStroke(new BasicStroke(1));
-			g.draw(area.getBounds());
-		}
-		
-		popTransform(g);
+		g.setTransform(transform);
 	}
 
-	@Override
-	public void setModifiers(Modifiers m)
+	/** Returns the outline of the aperture centred on the given position (in nanometres), in pixels. **/
+	public Shape getOutline(int x, int y)
 	{
-		modifiers = m;
+		return AffineTransform.getTranslateInstance(Utils.toPixels(x), Utils.toPixels(y)).createTransformedShape(area);
 	}
 
-	@Override
 	public Modifiers getModifiers()
 	{
 		return modifiers;
 	}
 	
-	@Override
-	public Rectangle2D getBounds()
+	/** Returns the bounds of the aperture centred on the given position (in nanometres), in pixels. **/
+	public Rectangle2D getBounds(int x, int y)
 	{
-		Rectangle2D r = area.getBounds2D();
-		return new Rectangle2D.Double(r.getMinX() + Utils.toPixels(offset.x), r.getMinY() + Utils.toPixels(offset.y), r.getWidth(), r.getHeight());
+		Rectangle2D r = areaBounds;
+		if (r == null)
+			areaBounds = r = area.getBounds2D();
+		
+		return new Rectangle2D.Double(r.getMinX() + Utils.toPixels(x), r.getMinY() + Utils.toPixels(y), r.getWidth(), r.getHeight());
 	}
 	
 	public static class Circle extends Aperture
@@ -0,0 +1,95 @@
+package main.graphicalobjects;
+
+import java.awt.AlphaComposite;
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Composite;
+import java.awt.Graphics2D;
+import java.awt.geom.Rectangle2D;
+
+import main.Config;
+import main.Utils;
+import main.Layer.Modifiers;
+import main.Layer.Modifiers.Polarity;
+import main.raster.CoverageRaster;
+
+/** A single D03 flash: a position and polarity referring to a shared, immutable Aperture. **/
+public class Flash implements Renderable
+{
+	private final Aperture aperture;
+	private final int x, y;
+	private Modifiers modifiers;
+
+	public Flash(Aperture aperture, int x, int y, Modifiers modifiers)
+	{
+		this.aperture = aperture;
+		this.x = x;
+		this.y = y;
+		this.modifiers = modifiers;
+	}
+
+	@Override
+	public void render(Graphics2D g)
+	{
+		Composite c = g.getComposite();
+
+		if (modifiers.polarity == Polarity.CLEAR)
+			g.setComposite(AlphaComposite.Clear);
+
+		aperture.render(g, x, y);
+
+		g.setComposite(c); // Restore
+
+		if (Config.drawBoundingBoxes)
+			drawBoundingBox(g);
+	}
+
+	@Override
+	public void rasterise(CoverageRaster raster)
+	{
+		boolean clear = modifiers.polarity == Polarity.CLEAR;
+		if (raster.drawStamp(aperture, Utils.toPixels(x), Utils.toPixels(y), clear))
+		{
+			if (Config.drawBoundingBoxes)
+				drawBoundingBox(raster.getGraphics());
+		}
+		else if (Config.nativeRasteriser) // Too large to stamp
+		{
+			raster.fillRegion(aperture.getOutline(x, y), clear);
+			if (Config.drawBoundingBoxes)
+				drawBoundingBox(raster.getGraphics());
+		}
+		else
+			render(raster.getGraphics());
+	}
+
+	private void drawBoundingBox(Graphics2D g)
+	{
+		g.setColor(Color.ORANGE);
+		g.setStroke(new BasicStroke(1));
+		g.draw(getBounds());
+	}
+
+	@Override
+	public void setModifiers(Modifiers m)
+	{
+		modifiers = m;
+	}
+
+	@Override
+	public Modifiers getModifiers()
+	{
+		return modifiers;
+	}
+
+	@Override
+	public Rectangle2D getBounds()
+	{
+		return aperture.getBounds(x, y);
+	}
+
+	public Aperture getAperture()
+	{
+		return aperture;
+	}
+}
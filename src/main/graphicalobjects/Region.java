@@ -11,6 +11,7 @@ import java.awt.geom.Rectangle2D;
 import main.Config;
 import main.Layer.Modifiers;
 import main.Layer.Modifiers.Polarity;
+import main.raster.CoverageRaster;
 
 public class Region implements Renderable
 {
@@ -50,11 +51,28 @@ public class Region implements Renderable
 		g.setComposite(c); // Restore
 		
 		if (Config.drawBoundingBoxes)
+			drawBoundingBox(g);
+	}
+
+	@Override
+	public void rasterise(CoverageRaster raster)
+	{
+		if (!Config.nativeRasteriser || Config.renderRegionAsOutline)
 		{
-			g.setColor(Color.ORANGE);
-			g.setStroke(new BasicStroke(1));
-			g.draw(p.getBounds());
+			render(raster.getGraphics());
+			return;
 		}
+
+		raster.fillRegion(p, modifiers.polarity == Polarity.CLEAR);
+		if (Config.drawBoundingBoxes)
+			drawBoundingBox(raster.getGraphics());
+	}
+
+	private void drawBoundingBox(Graphics2D g)
+	{
+		g.setColor(Color.ORANGE);
+		g.setStroke(new BasicStroke(1));
+		g.draw(p.getBounds());
 	}
 
 	@Override
@@ -4,10 +4,18 @@ import java.awt.Graphics2D;
 import java.awt.geom.Rectangle2D;
 
 import main.Layer.Modifiers;
+import main.raster.CoverageRaster;
 
 public interface Renderable
 {
 	public void render(Graphics2D g);
+
+	/** Draws the object into a layer's raster. Objects without a faster path render through the raster's Graphics2D. **/
+	public default void rasterise(CoverageRaster raster)
+	{
+		render(raster.getGraphics());
+	}
+
 	public void setModifiers(Modifiers m);
 	public Modifiers getModifiers();
 	public Rectangle2D getBounds();
@@ -0,0 +1,132 @@
+package main.graphicalobjects;
+
+import java.awt.BasicStroke;
+import java.awt.Shape;
+import java.awt.geom.Arc2D;
+import java.awt.geom.Line2D;
+import java.util.Arrays;
+
+import main.Utils;
+
+/**
+ * Display list of all the traces (D01 interpolations) in a layer, stored as primitive arrays rather than one object per segment. Coordinates are
+ * in pixels. A line keeps its two endpoints; an arc keeps its centre and radius in the same slots plus its start angle and extent in degrees.
+ * Stroke widths are kept once in a small table and referred to by index.
+ *
+ * Storage grows in fixed-size chunks, so adding a trace never copies the traces already stored. The buffer itself is not drawn: TraceRuns
+ * refer to consecutive ranges of it.
+ */
+public class TraceBuffer
+{
+	private static final int CHUNK_BITS = 12;
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	private static final int ARC_FLAG = 1; // Lowest bit of a trace's attributes; the rest is its thickness index
+
+	private static class Chunk
+	{
+		final int[] x1 = new int[CHUNK_SIZE]; // Start point, or centre of an arc
+		final int[] y1 = new int[CHUNK_SIZE];
+		final int[] x2 = new int[CHUNK_SIZE]; // End point; x2 is the radius of an arc
+		final int[] y2 = new int[CHUNK_SIZE];
+		final float[] startAngle = new float[CHUNK_SIZE];
+		final float[] extent = new float[CHUNK_SIZE];
+		final int[] attributes = new int[CHUNK_SIZE];
+	}
+
+	private Chunk[] chunks = new Chunk[16];
+	private int size = 0;
+
+	private int[] thicknesses = new int[0]; // Gerber units
+	private BasicStroke[] strokes = new BasicStroke[0];
+
+	public int size()
+	{
+		return size;
+	}
+
+	/** Adds a straight trace and returns its index. The thickness is in Gerber units. **/
+	public int addLine(int x1, int y1, int x2, int y2, int thickness)
+	{
+		return add(x1, y1, x2, y2, 0, 0, thicknessIndex(thickness) << 1);
+	}
+
+	/** Adds a circular trace and returns its index. Angles are in degrees, with the same conventions as Arc2D. **/
+	public int addArc(int centreX, int centreY, int radius, double startAngle, double extent, int thickness)
+	{
+		return add(centreX, centreY, radius, 0, (float) startAngle, (float) extent, thicknessIndex(thickness) << 1 | ARC_FLAG);
+	}
+
+	private int add(int x1, int y1, int x2, int y2, float startAngle, float extent, int attributes)
+	{
+		int chunkIndex = size >>> CHUNK_BITS;
+		if (chunkIndex == chunks.length)
+			chunks = Arrays.copyOf(chunks, chunks.length * 2);
+		if (chunks[chunkIndex] == null)
+			chunks[chunkIndex] = new Chunk();
+
+		Chunk chunk = chunks[chunkIndex];
+		int i = size & CHUNK_MASK;
+		chunk.x1[i] = x1;
+		chunk.y1[i] = y1;
+		chunk.x2[i] = x2;
+		chunk.y2[i] = y2;
+		chunk.startAngle[i] = startAngle;
+		chunk.extent[i] = extent;
+		chunk.attributes[i] = attributes;
+		return size++;
+	}
+
+	private int thicknessIndex(int thickness)
+	{
+		for (int i = thicknesses.length - 1; i >= 0; i--)
+		{
+			if (thicknesses[i] == thickness)
+				return i;
+		}
+
+		thicknesses = Arrays.copyOf(thicknesses, thicknesses.length + 1);
+		thicknesses[thicknesses.length - 1] = thickness;
+		strokes = Arrays.copyOf(strokes, strokes.length + 1);
+		strokes[strokes.length - 1] = new BasicStroke((float) Math.ceil(Utils.toPixels(thickness)), BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND);
+		return thicknesses.length - 1;
+	}
+
+	public boolean isArc(int trace)
+	{
+		return (chunks[trace >>> CHUNK_BITS].attributes[trace & CHUNK_MASK] & ARC_FLAG) != 0;
+	}
+
+	public int getThicknessIndex(int trace)
+	{
+		return chunks[trace >>> CHUNK_BITS].attributes[trace & CHUNK_MASK] >>> 1;
+	}
+
+	/** Returns the thickness, in Gerber units, for a thickness index. **/
+	public int getThickness(int thicknessIndex)
+	{
+		return thicknesses[thicknessIndex];
+	}
+
+	/** Returns the round-capped stroke for a thickness index. Strokes are immutable and shared by all traces of that thickness. **/
+	public BasicStroke getStroke(int thicknessIndex)
+	{
+		return strokes[thicknessIndex];
+	}
+
+	/** Loads a trace's centreline into one of the given shapes, depending on its type, and returns that shape. **/
+	public Shape getShape(int trace, Line2D.Double line, Arc2D.Double arc)
+	{
+		Chunk chunk = chunks[trace >>> CHUNK_BITS];
+		int i = trace & CHUNK_MASK;
+		if ((chunk.attributes[i] & ARC_FLAG) != 0)
+		{
+			arc.setArcByCenter(chunk.x1[i], chunk.y1[i], chunk.x2[i], chunk.startAngle[i], chunk.extent[i], Arc2D.OPEN);
+			return arc;
+		}
+
+		line.setLine(chunk.x1[i], chunk.y1[i], chunk.x2[i], chunk.y2[i]);
+		return line;
+	}
+}
@@ -0,0 +1,215 @@
+package main.graphicalobjects;
+
+import java.awt.AlphaComposite;
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Composite;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.geom.Arc2D;
+import java.awt.geom.Line2D;
+import java.awt.geom.Path2D;
+import java.awt.geom.Rectangle2D;
+
+import main.Config;
+import main.Utils;
+import main.Layer.Modifiers;
+import main.Layer.Modifiers.Polarity;
+import main.raster.CoverageRaster;
+
+/** Consecutive traces in a TraceBuffer that share the same modifiers, drawn in order as a single object. **/
+public class TraceRun implements Renderable
+{
+	private final TraceBuffer traces;
+	private final int first;
+	private int end;
+	private Modifiers modifiers;
+
+	private static final int MAX_BATCH_SIZE = 1024; // Traces per stroked path; bounds the size of the stroker's output
+
+	/** Creates an empty run starting at the given trace. **/
+	public TraceRun(TraceBuffer traces, int first, Modifiers modifiers)
+	{
+		this.traces = traces;
+		this.first = first;
+		this.end = first;
+		this.modifiers = modifiers;
+	}
+
+	/** Extends the run up to (but not including) the given trace. **/
+	public void extendTo(int end)
+	{
+		this.end = end;
+	}
+
+	/** Runs are limited to one stroke batch, which keeps them small enough for tiles and the spatial index to cull. **/
+	public boolean isFull()
+	{
+		return end - first >= MAX_BATCH_SIZE;
+	}
+
+	@Override
+	public void render(Graphics2D g)
+	{
+		Composite c = g.getComposite();
+
+		if (modifiers.polarity == Polarity.DARK)
+			g.setColor(Color.WHITE);
+		else
+			g.setComposite(AlphaComposite.Clear);
+
+		// Consecutive traces of the same width are stroked as one path. Within a run the draw order of traces of different widths is kept. Batches
+		// always start at the same traces, so that a tile drawing part of a run composites exactly what drawing the whole run would.
+		Rectangle clip = g.getClipBounds();
+		Line2D.Double line = new Line2D.Double();
+		Arc2D.Double arc = new Arc2D.Double();
+		Path2D.Float batch = new Path2D.Float(Path2D.WIND_NON_ZERO, MAX_BATCH_SIZE * 2);
+		boolean batchEmpty = true;
+		double endX = Double.NaN, endY = Double.NaN;
+		int thicknessIndex = traces.getThicknessIndex(first);
+		for (int i = first; i < end; i++)
+		{
+			if (traces.getThicknessIndex(i) != thicknessIndex || (i - first) % MAX_BATCH_SIZE == 0)
+			{
+				if (!batchEmpty)
+					drawBatch(g, batch, thicknessIndex);
+				batchEmpty = true;
+				thicknessIndex = traces.getThicknessIndex(i);
+			}
+
+			Shape s = traces.getShape(i, line, arc);
+			if (clip != null && !isVisible(s, line, arc, thicknessIndex, clip))
+			{
+				endX = endY = Double.NaN;
+				continue;
+			}
+
+			if (s == line)
+			{
+				// Segments that continue from the end of the previous one become a single polyline
+				if (batchEmpty || line.x1 != endX || line.y1 != endY)
+					batch.moveTo(line.x1, line.y1);
+				batch.lineTo(line.x2, line.y2);
+				endX = line.x2;
+				endY = line.y2;
+			}
+			else
+			{
+				batch.append(arc, false);
+				endX = endY = Double.NaN;
+			}
+			batchEmpty = false;
+		}
+		if (!batchEmpty)
+			drawBatch(g, batch, thicknessIndex);
+
+		g.setComposite(c); // Restore
+
+		if (Config.drawBoundingBoxes)
+			drawBoundingBoxes(g, line, arc);
+	}
+
+	/** Draws each trace straight from its centreline and width, which skips building stroked outlines. **/
+	@Override
+	public void rasterise(CoverageRaster raster)
+	{
+		if (!Config.nativeRasteriser)
+		{
+			render(raster.getGraphics());
+			return;
+		}
+
+		boolean clear = modifiers.polarity == Polarity.CLEAR;
+		Line2D.Double line = new Line2D.Double();
+		Arc2D.Double arc = new Arc2D.Double();
+		for (int i = first; i < end; i++)
+		{
+			double lineWidth = traces.getStroke(traces.getThicknessIndex(i)).getLineWidth();
+			if (traces.getShape(i, line, arc) == line)
+				raster.drawLine(line.x1, line.y1, line.x2, line.y2, lineWidth, clear);
+			else
+				raster.drawArc(arc, lineWidth, clear);
+		}
+
+		if (Config.drawBoundingBoxes)
+			drawBoundingBoxes(raster.getGraphics(), line, arc);
+	}
+
+	private void drawBoundingBoxes(Graphics2D g, Line2D.Double line, Arc2D.Double arc)
+	{
+		g.setColor(Color.ORANGE);
+		g.setStroke(new BasicStroke(1));
+		for (int i = first; i < end; i++)
+			g.draw(traces.getShape(i, line, arc).getBounds());
+	}
+
+	/** Conservatively tests whether a trace's stroke, including anti-aliasing, can touch the clip. **/
+	private boolean isVisible(Shape s, Line2D.Double line, Arc2D.Double arc, int thicknessIndex, Rectangle clip)
+	{
+		double margin = Utils.toPixels(traces.getThickness(thicknessIndex)) * 0.5 + 1;
+		if (s == line)
+		{
+			return Math.max(line.x1, line.x2) + margin >= clip.x && Math.min(line.x1, line.x2) - margin <= clip.x + clip.width
+					&& Math.max(line.y1, line.y2) + margin >= clip.y && Math.min(line.y1, line.y2) - margin <= clip.y + clip.height;
+		}
+
+		double reach = arc.width * 0.5 + margin;
+		return arc.getCenterX() + reach >= clip.x && arc.getCenterX() - reach <= clip.x + clip.width
+				&& arc.getCenterY() + reach >= clip.y && arc.getCenterY() - reach <= clip.y + clip.height;
+	}
+
+	private void drawBatch(Graphics2D g, Path2D.Float batch, int thicknessIndex)
+	{
+		g.setStroke(traces.getStroke(thicknessIndex));
+		g.draw(batch);
+		batch.reset();
+	}
+
+	@Override
+	public void setModifiers(Modifiers m)
+	{
+		modifiers = m;
+	}
+
+	@Override
+	public Modifiers getModifiers()
+	{
+		return modifiers;
+	}
+
+	/** Returns the bounds of the run, including the stroke width of each trace. **/
+	@Override
+	public Rectangle2D getBounds()
+	{
+		double minX = Double.POSITIVE_INFINITY;
+		double minY = Double.POSITIVE_INFINITY;
+		double maxX = Double.NEGATIVE_INFINITY;
+		double maxY = Double.NEGATIVE_INFINITY;
+
+		Line2D.Double line = new Line2D.Double();
+		Arc2D.Double arc = new Arc2D.Double();
+		for (int i = first; i < end; i++)
+		{
+			double halfThickness = Utils.toPixels(traces.getThickness(traces.getThicknessIndex(i))) * 0.5;
+
+			Shape s = traces.getShape(i, line, arc);
+			if (s == line)
+			{
+				minX = Math.min(minX, Math.min(line.x1, line.x2) - halfThickness);
+				minY = Math.min(minY, Math.min(line.y1, line.y2) - halfThickness);
+				maxX = Math.max(maxX, Math.max(line.x1, line.x2) + halfThickness);
+				maxY = Math.max(maxY, Math.max(line.y1, line.y2) + halfThickness);
+			}
+			else
+			{
+				Rectangle2D arcBounds = arc.getBounds2D();
+				minX = Math.min(minX, arcBounds.getMinX() - halfThickness);
+				minY = Math.min(minY, arcBounds.getMinY() - halfThickness);
+				maxX = Math.max(maxX, arcBounds.getMaxX() + halfThickness);
+				maxY = Math.max(maxY, arcBounds.getMaxY() + halfThickness);
+			}
+		}
+		return new Rectangle2D.Double(minX, minY, maxX - minX, maxY - minY);
+	}
+}
@@ -0,0 +1,153 @@
+package main.raster;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import main.Utils;
+import main.graphicalobjects.Aperture;
+
+/**
+ * Cache of pre-rasterised apertures. Each stamp is the anti-aliased coverage of one aperture at one sub-pixel phase, rendered by Java2D exactly as
+ * an in-place fill would be, so flashing it is a plain blit. Flash positions are snapped to the nearest 1/SUBPIXEL_STEPS of a pixel, which is
+ * the only difference from filling each flash in place (besides rounding by one grey level where flashes overlap). In practice flash positions are whole
+ * pixels, so a layer only ever needs one phase per aperture.
+ *
+ * Stamps are evicted least recently used first once the cache holds more than its byte budget, and apertures whose stamp would take more than
+ * an eighth of the budget are not cached at all.
+ */
+public class ApertureStampCache
+{
+	public static final int SUBPIXEL_STEPS = 16;
+
+	public static class Stamp
+	{
+		final byte[] coverage;
+		final int width, height;
+		final int offsetX, offsetY; // Position of the top left pixel relative to the pixel containing the aperture centre
+
+		Stamp(byte[] coverage, int width, int height, int offsetX, int offsetY)
+		{
+			this.coverage = coverage;
+			this.width = width;
+			this.height = height;
+			this.offsetX = offsetX;
+			this.offsetY = offsetY;
+		}
+	}
+
+	private static class Key
+	{
+		final Aperture aperture;
+		final int phaseX, phaseY;
+
+		Key(Aperture aperture, int phaseX, int phaseY)
+		{
+			this.aperture = aperture;
+			this.phaseX = phaseX;
+			this.phaseY = phaseY;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof Key))
+				return false;
+			Key k = (Key) o;
+			return k.aperture == aperture && k.phaseX == phaseX && k.phaseY == phaseY;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return (System.identityHashCode(aperture) * 31 + phaseX) * 31 + phaseY;
+		}
+	}
+
+	private final long maxBytes;
+	private long bytes = 0;
+	private long hits = 0, misses = 0, evictions = 0;
+	private final LinkedHashMap<Key, Stamp> stamps = new LinkedHashMap<>(64, 0.75f, true);
+
+	public ApertureStampCache(long maxBytes)
+	{
+		this.maxBytes = maxBytes;
+	}
+
+	/** Returns the stamp of an aperture at the given phase (in 1/SUBPIXEL_STEPS of a pixel), or null if the aperture is too large to stamp. **/
+	public Stamp get(Aperture aperture, int phaseX, int phaseY)
+	{
+		Key key = new Key(aperture, phaseX, phaseY);
+		synchronized (this)
+		{
+			Stamp stamp = stamps.get(key);
+			if (stamp != null)
+			{
+				hits++;
+				return stamp;
+			}
+			misses++;
+		}
+
+		// Rendered outside the lock so other threads can keep hitting the cache meanwhile:
+		Stamp stamp = createStamp(aperture, phaseX, phaseY);
+		if (stamp == null)
+			return null;
+
+		synchronized (this)
+		{
+			if (stamps.put(key, stamp) == null)
+				bytes += stamp.coverage.length;
+
+			Iterator<Map.Entry<Key, Stamp>> it = stamps.entrySet().iterator();
+			while (bytes > maxBytes && it.hasNext())
+			{
+				Stamp eldest = it.next().getValue();
+				if (eldest == stamp)
+					continue;
+				bytes -= eldest.coverage.length;
+				it.remove();
+				evictions++;
+			}
+		}
+		return stamp;
+	}
+
+	private Stamp createStamp(Aperture aperture, int phaseX, int phaseY)
+	{
+		Rectangle2D bounds = aperture.getBounds(0, 0);
+		double px = (double) phaseX / SUBPIXEL_STEPS;
+		double py = (double) phaseY / SUBPIXEL_STEPS;
+
+		// Device space is flipped in y, and a pixel of margin is left for anti-aliasing:
+		int left = (int) Math.floor(px + bounds.getMinX()) - 1;
+		int top = (int) Math.floor(py - bounds.getMaxY()) - 1;
+		int right = (int) Math.ceil(px + bounds.getMaxX()) + 1;
+		int bottom = (int) Math.ceil(py - bounds.getMinY()) + 1;
+
+		long size = (long) (right - left) * (bottom - top);
+		if (size > maxBytes / 8)
+			return null;
+
+		BufferedImage image = new BufferedImage(right - left, bottom - top, BufferedImage.TYPE_BYTE_GRAY);
+		Graphics2D g = image.createGraphics();
+		g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		g.translate(px - left, py - top);
+		g.scale(1, -1);
+		aperture.render(g, 0, 0);
+		g.dispose();
+
+		byte[] coverage = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+		return new Stamp(coverage, right - left, bottom - top, left, top);
+	}
+
+	public synchronized void logStatistics()
+	{
+		Utils.log(String.format("Aperture stamps: %d cached (%.1fMB), %d hits, %d misses, %d evictions", stamps.size(), bytes * 1E-6, hits, misses, evictions));
+	}
+}
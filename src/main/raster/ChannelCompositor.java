@@ -0,0 +1,78 @@
+package main.raster;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+
+/**
+ * Writes a layer's coverage into one colour channel of the combined image. There is one implementation per image format, with the channel's
+ * shift worked out when it is created, so the loops have no branches and the JIT can vectorise them. Writes to different pixels may run in
+ * parallel.
+ */
+public abstract class ChannelCompositor
+{
+	/** Composites coverage from src[srcOffset, srcOffset + length) into the image's pixels [dstOffset, dstOffset + length). **/
+	public abstract void composite(byte[] src, int srcOffset, int dstOffset, int length);
+
+	/**
+	 * Returns a compositor into a channel (0 blue, 1 green, 2 red) of a TYPE_INT_RGB or TYPE_USHORT_555_RGB image, which ORs coverage into the
+	 * channel (its top five bits for 555). Later channels have no colour and are ignored. A TYPE_BYTE_GRAY image just has coverage copied in.
+	 */
+	public static ChannelCompositor forImage(BufferedImage image, int channel)
+	{
+		switch (image.getType())
+		{
+			case BufferedImage.TYPE_BYTE_GRAY:
+			{
+				byte[] dst = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+				return new ChannelCompositor()
+				{
+					@Override
+					public void composite(byte[] src, int srcOffset, int dstOffset, int length)
+					{
+						System.arraycopy(src, srcOffset, dst, dstOffset, length);
+					}
+				};
+			}
+			case BufferedImage.TYPE_INT_RGB:
+			{
+				int[] dst = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+				int shift = channel * 8;
+				return channel > 2 ? NONE : new ChannelCompositor()
+				{
+					@Override
+					public void composite(byte[] src, int srcOffset, int dstOffset, int length)
+					{
+						for (int i = 0; i < length; i++)
+							dst[dstOffset + i] |= (src[srcOffset + i] & 0xFF) << shift;
+					}
+				};
+			}
+			case BufferedImage.TYPE_USHORT_555_RGB:
+			{
+				short[] dst = ((DataBufferUShort) image.getRaster().getDataBuffer()).getData();
+				int shift = channel * 5;
+				return channel > 2 ? NONE : new ChannelCompositor()
+				{
+					@Override
+					public void composite(byte[] src, int srcOffset, int dstOffset, int length)
+					{
+						for (int i = 0; i < length; i++)
+							dst[dstOffset + i] |= ((src[srcOffset + i] & 0xFF) >>> 3) << shift;
+					}
+				};
+			}
+			default:
+				throw new IllegalArgumentException("Layers can only be composited into TYPE_BYTE_GRAY, TYPE_INT_RGB or TYPE_USHORT_555_RGB images.");
+		}
+	}
+
+	private static final ChannelCompositor NONE = new ChannelCompositor()
+	{
+		@Override
+		public void composite(byte[] src, int srcOffset, int dstOffset, int length)
+		{
+		}
+	};
+}
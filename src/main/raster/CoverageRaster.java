@@ -0,0 +1,195 @@
+package main.raster;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.Shape;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Arc2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+
+import main.Config;
+import main.graphicalobjects.Aperture;
+import main.raster.ApertureStampCache.Stamp;
+
+/**
+ * A layer's greyscale coverage image, as seen by the objects drawing into it. Gerber pixel coordinates (+y up) map to device pixels (+y down) by
+ * a flip and an offset: deviceX = x + originX, deviceY = originY - y. Views of the board at other sizes also scale them first, in which case
+ * aperture stamps, which are made at one device pixel per Gerber pixel, are not used. The raster may hold only a window of device space, starting at pixel
+ * (left, top); the built-in rasterisers still work in whole-image device coordinates and only use the window to address pixels, so every
+ * window computes exactly the same coverage for its pixels. The same mapping is set up on the Graphics2D given to objects that draw through
+ * Java2D, while objects with a faster path write into the pixel data directly.
+ */
+public class CoverageRaster
+{
+	private final byte[] data;
+	private final int left, top, width, height;
+	private final double originX, originY;
+	private final double scale; // Device pixels per Gerber pixel
+	private final Graphics2D g;
+	private final AffineTransform deviceTransform;
+	private final ApertureStampCache stamps;
+	private ScanlineRasteriser scanlines = null;
+	private final TraceRasteriser traces;
+
+	/** Creates a raster over a whole image. **/
+	public CoverageRaster(BufferedImage image, double originX, double originY, ApertureStampCache stamps)
+	{
+		this(image, 0, 0, originX, originY, stamps);
+	}
+
+	/** Creates a raster whose image holds the window of device space with its top left corner at pixel (left, top). **/
+	public CoverageRaster(BufferedImage image, int left, int top, double originX, double originY, ApertureStampCache stamps)
+	{
+		this(image, left, top, originX, originY, 1, stamps);
+	}
+
+	/** Creates a raster over a window of device space in which Gerber pixels are scaled by the given factor before the flip and offset. **/
+	public CoverageRaster(BufferedImage image, int left, int top, double originX, double originY, double scale, ApertureStampCache stamps)
+	{
+		if (image.getType() != BufferedImage.TYPE_BYTE_GRAY)
+			throw new IllegalArgumentException("Coverage raster must be backed by a TYPE_BYTE_GRAY image.");
+
+		this.data = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+		this.left = left;
+		this.top = top;
+		this.width = image.getWidth();
+		this.height = image.getHeight();
+		this.originX = originX;
+		this.originY = originY;
+		this.scale = scale;
+		this.stamps = stamps;
+		traces = new TraceRasteriser(data, left, top, width, height);
+		deviceTransform = new AffineTransform(scale, 0, 0, -scale, originX, originY);
+
+		g = image.createGraphics();
+		g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		g.setClip(0, 0, width, height); // So that objects can find their visible area through getClipBounds()
+		g.transform(new AffineTransform(scale, 0, 0, -scale, originX - left, originY - top));
+		g.setColor(Color.WHITE);
+	}
+
+	public Graphics2D getGraphics()
+	{
+		return g;
+	}
+
+	public double toDeviceX(double x)
+	{
+		return x * scale + originX;
+	}
+
+	public double toDeviceY(double y)
+	{
+		return originY - y * scale;
+	}
+
+	/**
+	 * Composites the cached stamp of an aperture centred on the given position (in pixels). Returns false, without drawing anything, if the
+	 * aperture is too large to be stamped, or the raster is scaled; the caller should then fill its outline instead.
+	 */
+	public boolean drawStamp(Aperture aperture, double x, double y, boolean clear)
+	{
+		if (scale != 1)
+			return false;
+
+		double deviceX = toDeviceX(x);
+		double deviceY = toDeviceY(y);
+
+		int pixelX = (int) Math.floor(deviceX);
+		int pixelY = (int) Math.floor(deviceY);
+		int phaseX = (int) Math.round((deviceX - pixelX) * ApertureStampCache.SUBPIXEL_STEPS);
+		int phaseY = (int) Math.round((deviceY - pixelY) * ApertureStampCache.SUBPIXEL_STEPS);
+		if (phaseX == ApertureStampCache.SUBPIXEL_STEPS)
+		{
+			phaseX = 0;
+			pixelX++;
+		}
+		if (phaseY == ApertureStampCache.SUBPIXEL_STEPS)
+		{
+			phaseY = 0;
+			pixelY++;
+		}
+
+		Stamp stamp = stamps.get(aperture, phaseX, phaseY);
+		if (stamp == null)
+			return false;
+
+		blit(stamp, pixelX + stamp.offsetX - left, pixelY + stamp.offsetY - top, clear);
+		return true;
+	}
+
+	/**
+	 * Removes clear coverage c from pixel i: the pixel loses as much as the object covers of it, down to nothing. Every built-in rasteriser clears
+	 * this way, so where clear objects of different kinds meet their edges come out the same.
+	 */
+	static void clear(byte[] data, int i, int c)
+	{
+		data[i] = (byte) Math.max((data[i] & 0xFF) - c, 0);
+	}
+
+	/** Fills a region outline (in pixels) with exact anti-aliased coverage. Dark coverage is max'd with the image and clear coverage subtracted. **/
+	public void fillRegion(Shape outline, boolean clear)
+	{
+		if (scanlines == null)
+			scanlines = new ScanlineRasteriser(left, top, width, height);
+		scanlines.fill(outline, deviceTransform, data, clear);
+	}
+
+	/** Draws a straight trace of the given width (in pixels) with round ends. Dark coverage is max'd with the image and clear coverage subtracted. **/
+	public void drawLine(double x1, double y1, double x2, double y2, double lineWidth, boolean clear)
+	{
+		traces.drawCapsule(toDeviceX(x1), toDeviceY(y1), toDeviceX(x2), toDeviceY(y2), lineWidth * 0.5 * scale, clear);
+	}
+
+	/** Draws a circular trace of the given width (in pixels) with round ends, compositing like drawLine(). **/
+	public void drawArc(Arc2D arc, double lineWidth, boolean clear)
+	{
+		// Flipping y mirrors the angles, which Arc2D measures anticlockwise as seen on screen in both spaces
+		Rectangle2D bounds = arc.getBounds2D();
+		traces.drawArc(toDeviceX(arc.getCenterX()), toDeviceY(arc.getCenterY()), arc.getWidth() * 0.5 * scale, -arc.getAngleStart(), -arc.getAngleExtent(),
+				toDeviceX(bounds.getMinX()), toDeviceY(bounds.getMaxY()), toDeviceX(bounds.getMaxX()), toDeviceY(bounds.getMinY()), lineWidth * 0.5 * scale,
+				clear);
+	}
+
+	/**
+	 * Composites coverage onto the image with its top left corner at the given pixel of the image. Dark coverage is blended like a Java2D anti-aliased SrcOver
+	 * fill in white (dst + cov * (1 - dst)), or max'd with the image like the other built-in rasterisers when they are enabled. Clear coverage
+	 * is subtracted (see clear()), so a clear flash has the same edge whether its aperture is stamped or too large and filled as a region.
+	 */
+	private void blit(Stamp stamp, int left, int top, boolean clear)
+	{
+		int x0 = Math.max(left, 0);
+		int y0 = Math.max(top, 0);
+		int x1 = Math.min(left + stamp.width, width);
+		int y1 = Math.min(top + stamp.height, height);
+
+		byte[] coverage = stamp.coverage;
+		boolean max = Config.nativeRasteriser; // Read once, and the operator picked per row, so the loops over pixels have no branches
+		for (int y = y0; y < y1; y++)
+		{
+			int src = (y - top) * stamp.width - left; // Offsets of pixel x in the stamp and the image
+			int dst = y * width;
+			if (clear)
+			{
+				for (int x = x0; x < x1; x++)
+					clear(data, dst + x, coverage[src + x] & 0xFF);
+			}
+			else if (max)
+			{
+				for (int x = x0; x < x1; x++)
+					data[dst + x] = (byte) Math.max(coverage[src + x] & 0xFF, data[dst + x] & 0xFF);
+			}
+			else
+			{
+				for (int x = x0; x < x1; x++)
+				{
+					int c = coverage[src + x] & 0xFF;
+					data[dst + x] = (byte) (c + ((255 - c) * (data[dst + x] & 0xFF) + 127) / 255); // Leaves the pixel as it was where c is 0
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package main.raster;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Pixels of a TYPE_INT_RGB or TYPE_USHORT_555_RGB image kept in a memory-mapped temporary file rather than on the heap, so the operating system's
+ * page cache holds them and pages them out under pressure instead of the garbage collector. Rows are copied in and out a band at a time. A single
+ * mapping is limited to 2 GB, so the file is mapped in segments of whole rows. Not safe for use by several threads at once.
+ */
+public class OffHeapImage
+{
+	private static final long SEGMENT_SIZE = 1 << 30; // Bytes mapped at once, rounded down to whole rows
+
+	private final int width, height, imageType;
+	private final int rowsPerSegment;
+	private final IntBuffer[] intSegments; // One of these is set, according to the image type
+	private final ShortBuffer[] shortSegments;
+
+	public OffHeapImage(int width, int height, int imageType) throws IOException
+	{
+		if (imageType != BufferedImage.TYPE_INT_RGB && imageType != BufferedImage.TYPE_USHORT_555_RGB)
+			throw new IllegalArgumentException("Only TYPE_INT_RGB and TYPE_USHORT_555_RGB images can be kept off the heap.");
+
+		this.width = width;
+		this.height = height;
+		this.imageType = imageType;
+		int bytesPerPixel = imageType == BufferedImage.TYPE_INT_RGB ? 4 : 2;
+		long rowBytes = (long) width * bytesPerPixel;
+		rowsPerSegment = (int) Math.max(SEGMENT_SIZE / rowBytes, 1);
+
+		int segments = (height + rowsPerSegment - 1) / rowsPerSegment;
+		intSegments = new IntBuffer[segments];
+		shortSegments = new ShortBuffer[segments];
+
+		File file = File.createTempFile("gerber", ".raster");
+		file.deleteOnExit();
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel())
+		{
+			// Mappings stay valid once the channel is closed. A fresh file reads as zeros, so the image starts out black.
+			for (int s = 0; s < segments; s++)
+			{
+				int rows = Math.min(rowsPerSegment, height - s * rowsPerSegment);
+				MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_WRITE, s * rowsPerSegment * rowBytes, rows * rowBytes);
+				segment.order(ByteOrder.nativeOrder());
+				if (bytesPerPixel == 4)
+					intSegments[s] = segment.asIntBuffer();
+				else
+					shortSegments[s] = segment.asShortBuffer();
+			}
+		}
+		file.delete(); // Where the platform allows it, the file goes as soon as it is unmapped
+	}
+
+	public int getWidth()
+	{
+		return width;
+	}
+
+	public int getHeight()
+	{
+		return height;
+	}
+
+	/** Copies the rows of a band of the same width and type into the image, its first row going to row top. **/
+	public void write(BufferedImage band, int top)
+	{
+		copy(band, top, true);
+	}
+
+	/** Fills a band of the same width and type with the image's rows from row top. **/
+	public void read(BufferedImage band, int top)
+	{
+		copy(band, top, false);
+	}
+
+	private void copy(BufferedImage band, int top, boolean write)
+	{
+		if (band.getWidth() != width || band.getType() != imageType || top < 0 || top + band.getHeight() > height)
+			throw new IllegalArgumentException("Band does not match the image.");
+
+		for (int y = 0; y < band.getHeight(); y++)
+		{
+			int row = top + y;
+			int position = (row % rowsPerSegment) * width;
+			if (imageType == BufferedImage.TYPE_INT_RGB)
+			{
+				int[] data = ((DataBufferInt) band.getRaster().getDataBuffer()).getData();
+				IntBuffer segment = intSegments[row / rowsPerSegment].duplicate();
+				segment.position(position);
+				if (write)
+					segment.put(data, y * width, width);
+				else
+					segment.get(data, y * width, width);
+			}
+			else
+			{
+				short[] data = ((DataBufferUShort) band.getRaster().getDataBuffer()).getData();
+				ShortBuffer segment = shortSegments[row / rowsPerSegment].duplicate();
+				segment.position(position);
+				if (write)
+					segment.put(data, y * width, width);
+				else
+					segment.get(data, y * width, width);
+			}
+		}
+	}
+}
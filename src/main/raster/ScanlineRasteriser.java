@@ -0,0 +1,279 @@
+package main.raster;
+
+import java.awt.Shape;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.PathIterator;
+import java.util.Arrays;
+
+/**
+ * Polygon filler for Gerber regions. The outline is flattened into edges, which are sorted by the row they start on and activated and
+ * retired as the scanline moves down. Each active edge adds the exact signed area it cuts off within the current row to an accumulation
+ * buffer, and a running sum along the row then gives every pixel's coverage. Coverage is the absolute winding-weighted area clamped to 1,
+ * which is the non-zero fill exactly except in pixels where edges cross, as where contours overlap: there area wound twice counts twice, and
+ * area wound in opposite directions cancels, before the clamp.
+ *
+ * Edges are kept in whole-image device coordinates and the accumulation buffer starts at the left of the outline rather than of the raster's
+ * window, so a pixel's coverage is summed from the same values in the same order whichever window it is drawn in. All buffers are kept between
+ * calls; an instance belongs to one raster and must not be shared between threads.
+ */
+class ScanlineRasteriser
+{
+	static final double FLATNESS = 0.05; // Maximum distance, in pixels, of the flattened outline from arcs
+
+	private final int left, top, width, height; // Window of device space held by the data
+
+	// Edges, oriented downwards (y0 < y1) with the original direction kept in dir, and their dx/dy:
+	private double[] x0 = new double[256], y0 = new double[256], x1 = new double[256], y1 = new double[256], slope = new double[256], dir = new double[256];
+	private int numEdges;
+	private long[] order = new long[256]; // Start row << 32 | edge index, sorted
+	private int[] active = new int[256];
+
+	private double minX, maxX; // Horizontal extent of the edges
+	private int baseX; // Device x of the first accumulation cell
+
+	private double[] accumulation = new double[0];
+	private long[] touched = new long[256]; // First cell << 32 | last cell, for each edge accumulated into the current row
+	private int numTouched;
+	private final double[] coords = new double[6];
+
+	ScanlineRasteriser(int left, int top, int width, int height)
+	{
+		this.left = left;
+		this.top = top;
+		this.width = width;
+		this.height = height;
+	}
+
+	/** Fills a shape, mapped to device space by the given transform, into the coverage data. Dark coverage is max'd in and clear subtracted. **/
+	void fill(Shape shape, AffineTransform transform, byte[] data, boolean clear)
+	{
+		numEdges = 0;
+		minX = Double.POSITIVE_INFINITY;
+		maxX = Double.NEGATIVE_INFINITY;
+
+		double startX = 0, startY = 0, lastX = 0, lastY = 0;
+		for (PathIterator it = shape.getPathIterator(transform, FLATNESS); !it.isDone(); it.next())
+		{
+			switch (it.currentSegment(coords))
+			{
+				case PathIterator.SEG_MOVETO:
+					addEdge(lastX, lastY, startX, startY); // Subpaths are implicitly closed when filling
+					startX = lastX = coords[0];
+					startY = lastY = coords[1];
+					break;
+				case PathIterator.SEG_LINETO:
+					addEdge(lastX, lastY, coords[0], coords[1]);
+					lastX = coords[0];
+					lastY = coords[1];
+					break;
+				case PathIterator.SEG_CLOSE:
+					addEdge(lastX, lastY, startX, startY);
+					lastX = startX;
+					lastY = startY;
+					break;
+			}
+		}
+		addEdge(lastX, lastY, startX, startY);
+
+		if (numEdges == 0)
+			return;
+
+		// Cells from the left of the outline to one past its right, which the last edge in a row may spill into:
+		baseX = (int) Math.floor(minX);
+		int cells = (int) Math.ceil(maxX) - baseX + 2;
+		if (accumulation.length < cells)
+			accumulation = new double[Math.max(cells, accumulation.length * 2)];
+
+		for (int e = 0; e < numEdges; e++)
+			order[e] = (long) (Math.max((int) Math.floor(y0[e]), top) - top) << 32 | e;
+		Arrays.sort(order, 0, numEdges);
+
+		int next = 0;
+		int numActive = 0;
+		for (int row = top + (int) (order[0] >>> 32); row < top + height; row++)
+		{
+			if (numActive == 0)
+			{
+				if (next == numEdges)
+					break;
+				row = Math.max(row, top + (int) (order[next] >>> 32)); // Skip empty rows between contours
+			}
+
+			// Active edges are kept in the order they were added, so that edges sharing a cell always add to it in the same order whichever
+			// window is being drawn:
+			while (next < numEdges && top + (int) (order[next] >>> 32) <= row)
+			{
+				int e = (int) order[next++];
+				int k = numActive++;
+				for (; k > 0 && active[k - 1] > e; k--)
+					active[k] = active[k - 1];
+				active[k] = e;
+			}
+
+			numTouched = 0;
+			int kept = 0;
+			for (int k = 0; k < numActive; k++)
+			{
+				int e = active[k];
+				if (y1[e] <= row)
+					continue; // Retire
+				active[kept++] = e;
+				accumulateRow(e, row);
+			}
+			numActive = kept;
+			if (numTouched > 0)
+				compositeRow(data, row, clear);
+		}
+	}
+
+	private void addEdge(double ax, double ay, double bx, double by)
+	{
+		if (ay == by || Math.max(ay, by) <= top || Math.min(ay, by) >= top + height)
+			return; // Horizontal edges contribute no area, and rows outside the window are never drawn
+		if (Math.min(ax, bx) >= left + width)
+			return; // Only adds to the sum right of the window
+
+		minX = Math.min(minX, Math.min(ax, bx));
+		maxX = Math.max(maxX, Math.max(ax, bx));
+
+		if (numEdges == x0.length)
+		{
+			int capacity = numEdges * 2;
+			x0 = Arrays.copyOf(x0, capacity);
+			y0 = Arrays.copyOf(y0, capacity);
+			x1 = Arrays.copyOf(x1, capacity);
+			y1 = Arrays.copyOf(y1, capacity);
+			slope = Arrays.copyOf(slope, capacity);
+			dir = Arrays.copyOf(dir, capacity);
+			order = Arrays.copyOf(order, capacity);
+			active = Arrays.copyOf(active, capacity);
+			touched = Arrays.copyOf(touched, capacity);
+		}
+
+		int e = numEdges++;
+		slope[e] = (bx - ax) / (by - ay);
+		if (ay < by)
+		{
+			x0[e] = ax;
+			y0[e] = ay;
+			x1[e] = bx;
+			y1[e] = by;
+			dir[e] = 1;
+		}
+		else
+		{
+			x0[e] = bx;
+			y0[e] = by;
+			x1[e] = ax;
+			y1[e] = ay;
+			dir[e] = -1;
+		}
+	}
+
+	/** Adds the area to the right of the part of an edge within a row to the accumulation buffer, spread over the cells it crosses. **/
+	private void accumulateRow(int e, int row)
+	{
+		double entry = Math.max(row, y0[e]);
+		double exit = Math.min(row + 1, y1[e]);
+		double dy = exit - entry;
+		if (dy <= 0)
+			return;
+
+		// Device x, clamped to the edge's own extent against rounding at its ends:
+		double edgeLeft = Math.min(x0[e], x1[e]), edgeRight = Math.max(x0[e], x1[e]);
+		double xa = Math.max(edgeLeft, Math.min(edgeRight, x0[e] + (entry - y0[e]) * slope[e]));
+		double xb = Math.max(edgeLeft, Math.min(edgeRight, x0[e] + (exit - y0[e]) * slope[e]));
+		double d = dy * dir[e];
+
+		double left = Math.min(xa, xb), right = Math.max(xa, xb);
+		int leftX = (int) Math.floor(left);
+		int rightX = (int) Math.ceil(right);
+		int leftCell = leftX - baseX;
+		int rightCell = rightX - baseX;
+		touched[numTouched++] = (long) leftCell << 32 | Math.max(rightCell, leftCell + 1);
+		if (rightCell <= leftCell + 1)
+		{
+			// Within a single cell: split the area at the edge's mean x
+			double mid = 0.5 * (xa + xb) - leftX;
+			accumulation[leftCell] += d - d * mid;
+			accumulation[leftCell + 1] += d * mid;
+			return;
+		}
+
+		// Across several cells: the area grows quadratically through the first and last cells and linearly in between
+		double s = 1 / (right - left);
+		double leftFraction = left - leftX;
+		double a0 = 0.5 * s * (1 - leftFraction) * (1 - leftFraction);
+		double rightFraction = right - rightX + 1;
+		double am = 0.5 * s * rightFraction * rightFraction;
+		accumulation[leftCell] += d * a0;
+		if (rightCell == leftCell + 2)
+			accumulation[leftCell + 1] += d * (1 - a0 - am);
+		else
+		{
+			double a1 = s * (1.5 - leftFraction);
+			accumulation[leftCell + 1] += d * (a1 - a0);
+			for (int x = leftCell + 2; x < rightCell - 1; x++)
+				accumulation[x] += d * s;
+			double a2 = a1 + (rightCell - leftCell - 3) * s;
+			accumulation[rightCell - 1] += d * (1 - a2 - am);
+		}
+		accumulation[rightCell] += d * am;
+	}
+
+	/**
+	 * Integrates the accumulated areas along a row into coverage, composites it, and clears the cells used. Coverage only changes within the
+	 * cells that edges touched; between them it is constant, so those spans are composited in one go.
+	 */
+	private void compositeRow(byte[] data, int row, boolean clear)
+	{
+		Arrays.sort(touched, 0, numTouched);
+
+		// Cells within the window are composited; those left of it still add to the sum
+		int windowStart = left - baseX, windowEnd = left + width - baseX;
+		int offset = (row - top) * width - windowStart;
+		double sum = 0;
+		int c = 0;
+		int x = (int) (touched[0] >>> 32);
+		for (int t = 0; t < numTouched; t++)
+		{
+			int first = (int) (touched[t] >>> 32);
+			int last = (int) touched[t];
+
+			if (first > x)
+			{
+				if (c != 0 && Math.max(x, windowStart) < Math.min(first, windowEnd))
+					compositeSpan(data, offset + Math.max(x, windowStart), offset + Math.min(first, windowEnd), c, clear);
+				x = first;
+			}
+
+			for (; x <= last; x++)
+			{
+				sum += accumulation[x];
+				accumulation[x] = 0;
+				c = (int) (Math.min(Math.abs(sum), 1) * 255 + 0.5);
+				if (c != 0 && x >= windowStart && x < windowEnd)
+					compositeSpan(data, offset + x, offset + x + 1, c, clear);
+			}
+		}
+		if (c != 0 && Math.max(x, windowStart) < windowEnd) // Up to the side, where the edges closing the span were left out
+			compositeSpan(data, offset + Math.max(x, windowStart), offset + windowEnd, c, clear);
+	}
+
+	private static void compositeSpan(byte[] data, int from, int to, int c, boolean clear)
+	{
+		if (c == 255)
+		{
+			Arrays.fill(data, from, to, clear ? 0 : (byte) 255);
+			return;
+		}
+
+		for (int i = from; i < to; i++)
+		{
+			if (clear)
+				CoverageRaster.clear(data, i, c);
+			else if (c > (data[i] & 0xFF))
+				data[i] = (byte) c;
+		}
+	}
+}
@@ -0,0 +1,241 @@
+package main.raster;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import main.Config;
+import main.SpatialIndex;
+import main.Utils;
+import main.Layer.Modifiers.Polarity;
+import main.graphicalobjects.Renderable;
+
+/**
+ * Renders a layer into the full-board image by splitting the board into square tiles and rendering the tiles in parallel. Each tile has its
+ * own raster, Graphics2D and clip, and only draws the objects that the layer's spatial index finds overlapping it, in their original order.
+ * Tiles are offset by whole pixels and all the drawing paths compute coverage per pixel, so the result is identical to rendering the whole
+ * image at once. A finished tile's coverage goes straight into the layer's channel of the image, so no full-board coverage image is needed.
+ *
+ * With the built-in rasterisers, dark objects only ever raise a pixel's coverage to their own (a max), so a run of consecutive dark objects can
+ * be drawn in any order; only clear objects depend on what was drawn before them. When there are fewer tiles than threads, large dark runs
+ * within a tile are split into chunks that are drawn in parallel into scratch rasters and max'd together, with clear runs acting as barriers.
+ * This gives exactly the same result as drawing in order.
+ *
+ * Objects drawn through Java2D only match up across tiles if Marlin's path clipping is off (sun.java2d.renderer.clip=false), which Marlin reads
+ * once, so it has to be set before anything is drawn, as Main does. With it on, Marlin splits curves where the tile's clip crosses them, which
+ * changes how they are flattened along their whole length, so no overlap between tiles would hide it. The built-in rasterisers do not use
+ * Java2D and are unaffected.
+ */
+public class TiledRasteriser
+{
+	private static final int ANTIALIASING_MARGIN = 1; // Pixels that anti-aliased edges may spill past an object's bounds
+	private static final int MIN_OBJECTS_PER_CHUNK = 32; // Smallest part of a dark run worth a scratch raster of its own...
+	private static final int PIXELS_PER_CHUNK_OBJECT = 4096; // ...and at least one object per this many tile pixels, which merging it costs
+	private static final String CLIP_PROPERTY = "sun.java2d.renderer.clip";
+
+	// Each worker's set of the objects reaching its tile, kept between tiles rather than allocated for each. A worker waiting on chunks of a
+	// tile may be given another tile meanwhile, but by then the first has copied the set into its draw order.
+	private static final ThreadLocal<BitSet> VISIBLE_OBJECTS = ThreadLocal.withInitial(BitSet::new);
+
+	private final ForkJoinPool pool;
+	private final int tileSize;
+	private final ApertureStampCache stamps;
+
+	public TiledRasteriser(ForkJoinPool pool, int tileSize, ApertureStampCache stamps)
+	{
+		this.pool = pool;
+		this.tileSize = tileSize;
+		this.stamps = stamps;
+
+		boolean java2d = !Config.nativeRasteriser || Config.renderRegionAsOutline || Config.drawBoundingBoxes;
+		if (java2d && !"false".equals(System.getProperty(CLIP_PROPERTY)))
+			Utils.warn(CLIP_PROPERTY + " is not false, so objects drawn through Java2D may not line up along the edges of tiles.");
+	}
+
+	/**
+	 * Draws the objects into a channel of the image (see ChannelCompositor) using the same mapping as CoverageRaster, blocking until every tile
+	 * is done. The index must have been built over the same objects.
+	 */
+	public void rasterise(List<Renderable> objects, SpatialIndex index, BufferedImage image, int channel, double originX, double originY)
+	{
+		rasterise(objects, index, image, 0, channel, originX, originY);
+	}
+
+	/**
+	 * Draws the objects into an image holding the band of device rows from imageTop down, which comes out the same as that part of a whole-board
+	 * image would. Only objects reaching the band are drawn.
+	 */
+	public void rasterise(List<Renderable> objects, SpatialIndex index, BufferedImage image, int imageTop, int channel, double originX, double originY)
+	{
+		rasterise(objects, index, image, imageTop, channel, originX, originY, 1);
+	}
+
+	/** Draws the objects scaled by the given factor before the flip and offset (see CoverageRaster), as when viewing the board zoomed. **/
+	public void rasterise(List<Renderable> objects, SpatialIndex index, BufferedImage image, int imageTop, int channel, double originX, double originY,
+			double scale)
+	{
+		int width = image.getWidth();
+		int height = imageTop + image.getHeight();
+		ChannelCompositor compositor = ChannelCompositor.forImage(image, channel);
+
+		int tilesX = (width + tileSize - 1) / tileSize;
+		int tilesY = (height - imageTop + tileSize - 1) / tileSize;
+		boolean orderFree = Config.nativeRasteriser && !Config.renderRegionAsOutline && !Config.drawBoundingBoxes;
+		int chunksPerRun = orderFree ? Math.max(pool.getParallelism() / (tilesX * tilesY), 1) : 1;
+
+		CompletableFuture<?>[] futures = new CompletableFuture<?>[tilesX * tilesY];
+		for (int tileY = 0; tileY < tilesY; tileY++)
+		{
+			for (int tileX = 0; tileX < tilesX; tileX++)
+			{
+				int left = tileX * tileSize;
+				int top = imageTop + tileY * tileSize;
+				int right = Math.min(left + tileSize, width);
+				int bottom = Math.min(top + tileSize, height);
+
+				futures[tileY * tilesX + tileX] = CompletableFuture.runAsync(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						// Objects within reach of the tile, in object (pixel, +y up) coordinates (query() clears the set first):
+						BitSet visible = VISIBLE_OBJECTS.get();
+						double margin = ANTIALIASING_MARGIN / scale;
+						index.query((left - originX) / scale - margin, (originY - bottom) / scale - margin, (right - originX) / scale + margin,
+								(originY - top) / scale + margin, visible);
+
+						BufferedImage tile = new BufferedImage(right - left, bottom - top, BufferedImage.TYPE_BYTE_GRAY);
+						rasteriseTile(objects, index, visible, tile, left, top, originX, originY, scale, chunksPerRun);
+
+						byte[] tileData = ((DataBufferByte) tile.getRaster().getDataBuffer()).getData();
+						for (int y = top; y < bottom; y++)
+							compositor.composite(tileData, (y - top) * (right - left), (y - imageTop) * width + left, right - left);
+					}
+				}, pool);
+			}
+		}
+
+		try
+		{
+			CompletableFuture.allOf(futures).join();
+		}
+		catch (CompletionException e)
+		{
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw e;
+		}
+	}
+
+	/** Draws the visible objects into one tile, splitting dark runs into up to the given number of chunks. Runs on a worker of the pool. **/
+	private void rasteriseTile(List<Renderable> objects, SpatialIndex index, BitSet visible, BufferedImage tile, int left, int top, double originX, double originY,
+			double scale, int chunksPerRun)
+	{
+		CoverageRaster raster = new CoverageRaster(tile, left, top, originX, originY, scale, stamps);
+		if (chunksPerRun == 1)
+		{
+			for (int i = visible.nextSetBit(0); i >= 0; i = visible.nextSetBit(i + 1))
+				objects.get(i).rasterise(raster);
+			raster.getGraphics().dispose();
+			return;
+		}
+
+		int[] order = visible.stream().toArray();
+		int minObjectsPerChunk = Math.max(MIN_OBJECTS_PER_CHUNK, tile.getWidth() * tile.getHeight() / PIXELS_PER_CHUNK_OBJECT);
+		CoverageRaster[] scratch = new CoverageRaster[chunksPerRun]; // Chunk 0 draws straight into the tile
+		BufferedImage[] scratchImages = new BufferedImage[chunksPerRun];
+		for (int runStart = 0; runStart < order.length;)
+		{
+			boolean clear = objects.get(order[runStart]).getModifiers().polarity == Polarity.CLEAR;
+			int runEnd = runStart + 1;
+			while (runEnd < order.length && (objects.get(order[runEnd]).getModifiers().polarity == Polarity.CLEAR) == clear)
+				runEnd++;
+
+			int chunks = clear ? 1 : Math.min(chunksPerRun, (runEnd - runStart) / minObjectsPerChunk);
+			if (chunks <= 1)
+			{
+				for (int k = runStart; k < runEnd; k++)
+					objects.get(order[k]).rasterise(raster);
+			}
+			else
+			{
+				ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[chunks];
+				for (int chunk = 1; chunk < chunks; chunk++)
+				{
+					if (scratch[chunk] == null)
+					{
+						scratchImages[chunk] = new BufferedImage(tile.getWidth(), tile.getHeight(), BufferedImage.TYPE_BYTE_GRAY);
+						scratch[chunk] = new CoverageRaster(scratchImages[chunk], left, top, originX, originY, scale, stamps);
+					}
+					Runnable draw = drawChunk(objects, order, chunkStart(runStart, runEnd, chunk, chunks), chunkStart(runStart, runEnd, chunk + 1, chunks), scratch[chunk]);
+					tasks[chunk] = ForkJoinTask.adapt(draw).fork();
+				}
+				drawChunk(objects, order, runStart, chunkStart(runStart, runEnd, 1, chunks), raster).run();
+
+				// Max each chunk into the tile over the area its objects cover, and leave its scratch raster empty for the next run:
+				int tileWidth = tile.getWidth();
+				byte[] tileData = ((DataBufferByte) tile.getRaster().getDataBuffer()).getData();
+				for (int chunk = 1; chunk < chunks; chunk++)
+				{
+					double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+					double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+					for (int k = chunkStart(runStart, runEnd, chunk, chunks); k < chunkStart(runStart, runEnd, chunk + 1, chunks); k++)
+					{
+						minX = Math.min(minX, index.getMinX(order[k]));
+						minY = Math.min(minY, index.getMinY(order[k]));
+						maxX = Math.max(maxX, index.getMaxX(order[k]));
+						maxY = Math.max(maxY, index.getMaxY(order[k]));
+					}
+					int x0 = Math.max((int) Math.floor(minX * scale + originX) - ANTIALIASING_MARGIN - left, 0);
+					int x1 = Math.min((int) Math.ceil(maxX * scale + originX) + ANTIALIASING_MARGIN - left, tileWidth);
+					int y0 = Math.max((int) Math.floor(originY - maxY * scale) - ANTIALIASING_MARGIN - top, 0);
+					int y1 = Math.min((int) Math.ceil(originY - minY * scale) + ANTIALIASING_MARGIN - top, tile.getHeight());
+
+					tasks[chunk].join();
+					byte[] scratchData = ((DataBufferByte) scratchImages[chunk].getRaster().getDataBuffer()).getData();
+					for (int y = y0; y < y1; y++)
+					{
+						for (int p = y * tileWidth + x0; p < y * tileWidth + x1; p++)
+						{
+							if ((scratchData[p] & 0xFF) > (tileData[p] & 0xFF))
+								tileData[p] = scratchData[p];
+							scratchData[p] = 0;
+						}
+					}
+				}
+			}
+			runStart = runEnd;
+		}
+
+		raster.getGraphics().dispose();
+		for (CoverageRaster r : scratch)
+		{
+			if (r != null)
+				r.getGraphics().dispose();
+		}
+	}
+
+	/** Returns the position in the run at which a chunk starts. **/
+	private static int chunkStart(int runStart, int runEnd, int chunk, int chunks)
+	{
+		return runStart + (int) ((long) (runEnd - runStart) * chunk / chunks);
+	}
+
+	private static Runnable drawChunk(List<Renderable> objects, int[] order, int from, int to, CoverageRaster raster)
+	{
+		return new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				for (int k = from; k < to; k++)
+					objects.get(order[k]).rasterise(raster);
+			}
+		};
+	}
+}
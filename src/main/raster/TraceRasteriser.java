@@ -0,0 +1,241 @@
+package main.raster;
+
+import java.util.Arrays;
+
+/**
+ * Draws traces made with a circular aperture without stroking them. A straight trace is the set of points within half its width of the segment
+ * (a capsule), and a circular one the points within half its width of the arc (an annular sector with round ends), so each pixel's coverage
+ * follows directly from the distance between its centre and the centreline: full up to half a pixel inside the edge, falling linearly to none
+ * half a pixel outside it. Only the rows and columns the trace can reach are visited.
+ *
+ * Coordinates are whole-image device pixels, of which the data holds a window. Dark coverage is max'd with the image, like the union of the traces,
+ * so the overlapping ends of connected traces are not blended twice. Clear coverage is subtracted, as with every other kind of clear object.
+ */
+final class TraceRasteriser
+{
+	private final byte[] data;
+	private final int left, top, width, height; // Window of device space held by data
+	private double dx, dy, length, inverseDx, inverseDy; // Segment being drawn by drawCapsule(), relative to its start
+	private double spanLeft, spanRight; // Result of findSpan()
+
+	TraceRasteriser(byte[] data, int left, int top, int width, int height)
+	{
+		this.data = data;
+		this.left = left;
+		this.top = top;
+		this.width = width;
+		this.height = height;
+	}
+
+	/** Draws the capsule of the given radius around the segment from (ax, ay) to (bx, by). **/
+	void drawCapsule(double ax, double ay, double bx, double by, double radius, boolean clear)
+	{
+		double reach = radius + 0.5;
+		double full = radius - 0.5;
+		int y0 = Math.max((int) Math.floor(Math.min(ay, by) - reach), top);
+		int y1 = Math.min((int) Math.ceil(Math.max(ay, by) + reach), top + height);
+		if (Math.max(ax, bx) + reach < left || Math.min(ax, bx) - reach > left + width)
+			return;
+
+		dx = bx - ax;
+		dy = by - ay;
+		double lengthSquared = dx * dx + dy * dy;
+		length = Math.sqrt(lengthSquared);
+		inverseDx = 1 / dx;
+		inverseDy = 1 / dy;
+		double inverseLengthSquared = lengthSquared > 0 ? 1 / lengthSquared : 0; // A zero length segment is a dot
+		double reachSquared = reach * reach;
+
+		for (int row = y0; row < y1; row++)
+		{
+			double py = row + 0.5 - ay;
+			if (!findSpan(py, reach))
+				continue;
+
+			// Pixels whose centres are in the capsule grown by half a pixel have some coverage, and those in the capsule shrunk by half a pixel
+			// are fully covered. Only the fringe between the two needs its distance from the segment worked out.
+			int x0 = Math.max((int) Math.ceil(ax + spanLeft - 0.5), left);
+			int x1 = Math.min((int) Math.floor(ax + spanRight - 0.5) + 1, left + width);
+			int fullX0 = x1, fullX1 = x1;
+			if (full > 0 && findSpan(py, full))
+			{
+				fullX0 = Math.max((int) Math.ceil(ax + spanLeft - 0.5), x0);
+				fullX1 = Math.min((int) Math.floor(ax + spanRight - 0.5) + 1, x1);
+				if (fullX0 >= fullX1)
+					fullX0 = fullX1 = x1;
+			}
+
+			int offset = (row - top) * width - left;
+			for (int x = x0; x < x1; x++)
+			{
+				if (x == fullX0)
+				{
+					Arrays.fill(data, offset + fullX0, offset + fullX1, clear ? 0 : (byte) 255);
+					x = fullX1 - 1;
+					continue;
+				}
+
+				double px = x + 0.5 - ax;
+				double t = Math.max(0, Math.min(1, (px * dx + py * dy) * inverseLengthSquared));
+				double ex = px - t * dx;
+				double ey = py - t * dy;
+				double distanceSquared = ex * ex + ey * ey;
+				if (distanceSquared < reachSquared)
+					composite(offset + x, coverage(reach - Math.sqrt(distanceSquared)), clear);
+			}
+		}
+	}
+
+	/**
+	 * Finds where the horizontal line at height py crosses the capsule of radius r around the current segment, relative to its start, and stores it
+	 * in spanLeft and spanRight. The capsule is convex, so this is the hull of where the line crosses the two end discs and the band between them.
+	 * Returns false if the line misses it.
+	 */
+	private boolean findSpan(double py, double r)
+	{
+		double left = Double.POSITIVE_INFINITY, right = Double.NEGATIVE_INFINITY;
+		if (Math.abs(py) < r)
+		{
+			double half = Math.sqrt(r * r - py * py);
+			left = -half;
+			right = half;
+		}
+		double qy = py - dy;
+		if (Math.abs(qy) < r)
+		{
+			double half = Math.sqrt(r * r - qy * qy);
+			left = Math.min(left, dx - half);
+			right = Math.max(right, dx + half);
+		}
+
+		if (length > 0)
+		{
+			// Within r of the infinite line...
+			double bandLeft = Double.NEGATIVE_INFINITY, bandRight = Double.POSITIVE_INFINITY;
+			if (dy != 0)
+			{
+				double a = (py * dx - r * length) * inverseDy, b = (py * dx + r * length) * inverseDy;
+				bandLeft = Math.min(a, b);
+				bandRight = Math.max(a, b);
+			}
+			else if (Math.abs(py) >= r)
+				bandLeft = bandRight = Double.NaN;
+
+			// ...and projecting onto the segment between its ends
+			if (dx != 0)
+			{
+				double a = -py * dy * inverseDx, b = (length * length - py * dy) * inverseDx;
+				bandLeft = Math.max(bandLeft, Math.min(a, b));
+				bandRight = Math.min(bandRight, Math.max(a, b));
+			}
+			else if (py * dy < 0 || py * dy > length * length)
+				bandLeft = bandRight = Double.NaN;
+
+			if (bandLeft < bandRight)
+			{
+				left = Math.min(left, bandLeft);
+				right = Math.max(right, bandRight);
+			}
+		}
+
+		spanLeft = left;
+		spanRight = right;
+		return left <= right;
+	}
+
+	/**
+	 * Draws the band of the given radius around a circular arc. The angles are in degrees with the same conventions as Arc2D in device space, and
+	 * the bounds are those of the centreline.
+	 */
+	void drawArc(double centreX, double centreY, double arcRadius, double startAngle, double extent, double boundsLeft, double boundsTop,
+			double boundsRight, double boundsBottom, double radius, boolean clear)
+	{
+		double reach = radius + 0.5;
+		int y0 = Math.max((int) Math.floor(boundsTop - reach), top);
+		int y1 = Math.min((int) Math.ceil(boundsBottom + reach), top + height);
+		int boundsX0 = Math.max((int) Math.floor(boundsLeft - reach), left);
+		int boundsX1 = Math.min((int) Math.ceil(boundsRight + reach), left + width);
+		if (boundsX0 >= boundsX1)
+			return;
+
+		if (extent < 0)
+		{
+			startAngle += extent;
+			extent = -extent;
+		}
+		boolean full = extent >= 360;
+		boolean major = extent > 180;
+
+		// Unit vectors to the ends of the arc; a device space angle a is at (cos a, -sin a) from the centre, as y points down
+		double startX = Math.cos(Math.toRadians(startAngle)), startY = -Math.sin(Math.toRadians(startAngle));
+		double endX = Math.cos(Math.toRadians(startAngle + extent)), endY = -Math.sin(Math.toRadians(startAngle + extent));
+
+		double outer = arcRadius + reach;
+		double inner = arcRadius - reach;
+		double reachSquared = reach * reach;
+		for (int row = y0; row < y1; row++)
+		{
+			double py = row + 0.5 - centreY;
+			if (Math.abs(py) >= outer)
+				continue;
+
+			// The band crosses the row in up to two spans, either side of the hole in the middle:
+			double outerHalf = Math.sqrt(outer * outer - py * py);
+			double innerHalf = Math.abs(py) < inner ? Math.sqrt(inner * inner - py * py) : 0;
+			int x0 = Math.max((int) Math.floor(centreX - outerHalf), boundsX0);
+			int x1 = Math.min((int) Math.ceil(centreX + outerHalf), boundsX1);
+			int holeX0 = (int) Math.ceil(centreX - innerHalf);
+			int holeX1 = (int) Math.floor(centreX + innerHalf);
+
+			int offset = (row - top) * width - left;
+			for (int x = x0; x < x1; x++)
+			{
+				if (x >= holeX0 && x < holeX1)
+				{
+					x = holeX1 - 1;
+					continue;
+				}
+
+				double px = x + 0.5 - centreX;
+
+				double distance;
+				if (full || isInSweep(px, py, startX, startY, endX, endY, major))
+					distance = Math.abs(Math.sqrt(px * px + py * py) - arcRadius);
+				else
+				{
+					// Beyond the ends, the nearest point is one of the end points
+					double sx = px - startX * arcRadius, sy = py - startY * arcRadius;
+					double ex = px - endX * arcRadius, ey = py - endY * arcRadius;
+					double distanceSquared = Math.min(sx * sx + sy * sy, ex * ex + ey * ey);
+					if (distanceSquared >= reachSquared)
+						continue;
+					distance = Math.sqrt(distanceSquared);
+				}
+
+				if (distance < reach)
+					composite(offset + x, coverage(reach - distance), clear);
+			}
+		}
+	}
+
+	/** Tests whether a point is in the (anticlockwise, as seen on screen) sweep from the start vector to the end vector. **/
+	private static boolean isInSweep(double px, double py, double startX, double startY, double endX, double endY, boolean major)
+	{
+		boolean afterStart = startX * py - startY * px <= 0;
+		boolean beforeEnd = px * endY - py * endX <= 0;
+		return major ? afterStart || beforeEnd : afterStart && beforeEnd;
+	}
+
+	private static int coverage(double c)
+	{
+		return c >= 1 ? 255 : (int) (c * 255 + 0.5);
+	}
+
+	private void composite(int i, int c, boolean clear)
+	{
+		if (clear)
+			CoverageRaster.clear(data, i, c);
+		else if (c > (data[i] & 0xFF))
+			data[i] = (byte) c;
+	}
+}
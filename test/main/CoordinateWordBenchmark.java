@@ -0,0 +1,102 @@
+package main;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Times CoordinateWord against the path it replaced in Layer: the coordinate regex, an Integer[] of parsed groups and a switch on the operation
+ * string. Run with an optional number of words, 1000000 by default; each path is timed over several passes so the later ones are warm.
+ */
+public class CoordinateWordBenchmark
+{
+	/** The pattern Layer matched coordinate words against before CoordinateWord. **/
+	static final Pattern COORDINATE_PATTERN = Pattern.compile("^(?:X([+-]?\\d+))?(?:Y([+-]?\\d+))?(?:I([+-]?\\d+))?(?:J([+-]?\\d+))?(D0\\d)$");
+	private static final int PASSES = 5;
+
+	public static void main(String[] args)
+	{
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+
+		// Words like those of a board: mostly X and Y, now and then with arc offsets
+		Random random = new Random(1);
+		StringBuilder text = new StringBuilder();
+		int[] starts = new int[count + 1];
+		for (int n = 0; n < count; n++)
+		{
+			starts[n] = text.length();
+			text.append('X').append(random.nextInt(2000000000) - 1000000000).append('Y').append(random.nextInt(2000000000) - 1000000000);
+			if (random.nextInt(10) == 0)
+				text.append('I').append(random.nextInt(2000000) - 1000000).append('J').append(random.nextInt(2000000) - 1000000);
+			text.append("D0").append(1 + random.nextInt(3));
+		}
+		starts[count] = text.length();
+
+		byte[] bytes = text.toString().getBytes(StandardCharsets.US_ASCII);
+		TokenArena arena = new TokenArena(ByteBuffer.wrap(bytes));
+		String[] strings = new String[count];
+		for (int n = 0; n < count; n++)
+		{
+			arena.add(starts[n], starts[n + 1]);
+			strings[n] = text.substring(starts[n], starts[n + 1]);
+		}
+
+		CoordinateWord coordinate = new CoordinateWord();
+		for (int pass = 0; pass < PASSES; pass++)
+		{
+			long start = System.nanoTime();
+			long sum = 0;
+			for (int n = 0; n < count; n++)
+				sum += regexPath(strings[n]);
+			long regexTime = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			long check = 0;
+			for (int n = 0; n < count; n++)
+			{
+				int operation = coordinate.decode(arena, n);
+				check += coordinate.x + coordinate.y + operation;
+				if (coordinate.hasI)
+					check += coordinate.i + coordinate.j;
+			}
+			long decoderTime = System.nanoTime() - start;
+
+			if (sum != check)
+				throw new RuntimeException("The two paths decoded differently.");
+			System.out.println(String.format("Pass %d: regex path %.0f ns/word, decoder %.0f ns/word", pass + 1, (double) regexTime / count,
+					(double) decoderTime / count));
+		}
+	}
+
+	/** Decodes a word as Layer did before CoordinateWord, returning the sum of its values and operation number. **/
+	private static long regexPath(String word)
+	{
+		Matcher m = COORDINATE_PATTERN.matcher(word);
+		if (!m.matches())
+			throw new RuntimeException("Invalid draw command: " + word);
+
+		Integer args[] = new Integer[m.groupCount() - 1];
+		for (int i = 0; i < m.groupCount() - 1; i++)
+		{
+			String group = m.group(i + 1);
+			args[i] = group == null ? null : Integer.parseInt(group);
+		}
+
+		long sum = (long) args[0] + args[1];
+		if (args[2] != null)
+			sum += (long) args[2] + args[3];
+		switch (m.group(5))
+		{
+			case "D01":
+				return sum + 1;
+			case "D02":
+				return sum + 2;
+			case "D03":
+				return sum + 3;
+			default:
+				throw new RuntimeException("Unknown operation: " + m.group(5));
+		}
+	}
+}
@@ -0,0 +1,185 @@
+package main;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.regex.Matcher;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+
+/** Checks CoordinateWord against the coordinate regex and Integer.parseInt() it replaced. **/
+class CoordinateWordTest
+{
+	private final CoordinateWord coordinate = new CoordinateWord();
+
+	@Test
+	void decodesEachOperation()
+	{
+		assertEquals(1, decode("X100Y200D01"));
+		assertEquals(2, decode("X100Y200D02"));
+		assertEquals(3, decode("X100Y200D03"));
+		assertEquals(100, coordinate.x);
+		assertEquals(200, coordinate.y);
+	}
+
+	@Test
+	void decodesSigns()
+	{
+		assertEquals(1, decode("X-15Y+27I-0J+0D01"));
+		assertEquals(-15, coordinate.x);
+		assertEquals(27, coordinate.y);
+		assertEquals(0, coordinate.i);
+		assertEquals(0, coordinate.j);
+	}
+
+	@Test
+	void leavesMissingAxesUnset()
+	{
+		assertEquals(1, decode("Y5J-7D01"));
+		assertFalse(coordinate.hasX);
+		assertTrue(coordinate.hasY);
+		assertFalse(coordinate.hasI);
+		assertTrue(coordinate.hasJ);
+		assertEquals(5, coordinate.y);
+		assertEquals(-7, coordinate.j);
+
+		assertEquals(2, decode("D02"));
+		assertFalse(coordinate.hasX || coordinate.hasY || coordinate.hasI || coordinate.hasJ);
+	}
+
+	@Test
+	void rejectsOtherWords()
+	{
+		for (String word : new String[] { "", "X1", "X1Y2", "Y1X2D01", "X1X2D01", "XD01", "X-D01", "X1D1", "X1D001", "X1D01X", "X1D0A", "G01X1D01",
+				"X1.5D01", "X--1D01" })
+			assertEquals(-1, decode(word), word);
+	}
+
+	@Test
+	void acceptsTheIntRange()
+	{
+		assertEquals(1, decode("X2147483647Y-2147483648D01"));
+		assertEquals(Integer.MAX_VALUE, coordinate.x);
+		assertEquals(Integer.MIN_VALUE, coordinate.y);
+
+		assertEquals(1, decode("X-0002147483648D01"));
+		assertEquals(Integer.MIN_VALUE, coordinate.x);
+	}
+
+	@Test
+	void rejectsValuesOutsideTheIntRange()
+	{
+		for (String word : new String[] { "X2147483648D01", "X-2147483649D01", "Y-21474836481D01", "I21474836470D01", "J-99999999999999999999D01",
+				"X+2147483648D02" })
+		{
+			assertThrows(Exceptions.GerberCommandException.class, new Executable()
+			{
+				@Override
+				public void execute()
+				{
+					decode(word);
+				}
+			}, word);
+		}
+	}
+
+	/** Random words, many of them near the ends of the int range, must decode exactly as the regex path did. **/
+	@Test
+	void matchesTheRegexPath()
+	{
+		Random random = new Random(1);
+		for (int n = 0; n < 200000; n++)
+		{
+			String word = randomWord(random);
+			String expected = regexPath(word);
+			String actual;
+			try
+			{
+				int operation = decode(word);
+				actual = operation < 0 ? "no match" : describe(coordinate.hasX, coordinate.x) + describe(coordinate.hasY, coordinate.y)
+						+ describe(coordinate.hasI, coordinate.i) + describe(coordinate.hasJ, coordinate.j) + operation;
+			}
+			catch (Exceptions.GerberCommandException e)
+			{
+				actual = "out of range";
+			}
+			assertEquals(expected, actual, word);
+		}
+	}
+
+	/** Decodes a word the way Layer did before CoordinateWord, describing the result like matchesTheRegexPath(). **/
+	private static String regexPath(String word)
+	{
+		Matcher m = CoordinateWordBenchmark.COORDINATE_PATTERN.matcher(word);
+		if (!m.matches())
+			return "no match";
+
+		StringBuilder result = new StringBuilder();
+		for (int group = 1; group <= 4; group++)
+		{
+			try
+			{
+				result.append(describe(m.group(group) != null, m.group(group) == null ? 0 : Integer.parseInt(m.group(group))));
+			}
+			catch (NumberFormatException e)
+			{
+				return "out of range";
+			}
+		}
+		return result.append(m.group(5).charAt(2) - '0').toString();
+	}
+
+	/** Describes one axis, whose value is left as it was when it is missing. **/
+	private static String describe(boolean present, int value)
+	{
+		return present ? value + " " : "- ";
+	}
+
+	private static String randomWord(Random random)
+	{
+		StringBuilder word = new StringBuilder();
+		for (char axis : new char[] { 'X', 'Y', 'I', 'J' })
+		{
+			if (random.nextInt(3) == 0)
+				continue;
+			word.append(random.nextInt(40) == 0 ? (char) ('I' + random.nextInt(17)) : axis); // Now and then out of order
+			int sign = random.nextInt(3);
+			if (sign > 0)
+				word.append(sign == 1 ? '-' : '+');
+			switch (random.nextInt(5))
+			{
+				case 0: // Near the ends of the int range
+					word.append(2147483648L + random.nextInt(5) - 2);
+					break;
+				case 4: // Starting like them, with more digits after
+					word.append(2147483648L + random.nextInt(5) - 2).append(random.nextInt(100));
+					break;
+				case 1: // Far past them
+					word.append(Math.abs(random.nextLong()) % 100000000000L * 10 + random.nextInt(10));
+					break;
+				case 2: // No digits at all, now and then
+					if (random.nextInt(20) != 0)
+						word.append(random.nextInt(1000000));
+					break;
+				default:
+					word.append(random.nextInt());
+					break;
+			}
+		}
+		word.append(random.nextInt(30) == 0 ? "D1" : "D0").append(random.nextInt(10));
+		return word.toString();
+	}
+
+	private int decode(String word)
+	{
+		byte[] bytes = word.getBytes(StandardCharsets.US_ASCII);
+		TokenArena arena = new TokenArena(ByteBuffer.wrap(bytes));
+		return coordinate.decode(arena, arena.add(0, bytes.length));
+	}
+}
@@ -0,0 +1,134 @@
+package main;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferUShort;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Writes images of awkward sizes through PngStreamWriter in uneven bands, and checks both that ImageIO reads back the same pixels and that the
+ * zlib stream the writer frames by hand inflates cleanly, with the right checksum.
+ */
+class PngStreamWriterTest
+{
+	private static final int[] BAND_HEIGHTS = { 1, 7, 37, 100 }; // Used in turn
+	private static final int[][] SIZES = { { 1, 1 }, { 300, 1 }, { 1000, 700 }, { 4000, 100 }, { 87382, 3 } }; // The last has rows longer than a block
+
+	private final ForkJoinPool pool = new ForkJoinPool(3);
+
+	@Test
+	void writesIntRgbImages() throws IOException, DataFormatException
+	{
+		for (int[] size : SIZES)
+			check(size[0], size[1], BufferedImage.TYPE_INT_RGB);
+	}
+
+	@Test
+	void writes555Images() throws IOException, DataFormatException
+	{
+		for (int[] size : SIZES)
+			check(size[0], size[1], BufferedImage.TYPE_USHORT_555_RGB);
+	}
+
+	private void check(int width, int height, int imageType) throws IOException, DataFormatException
+	{
+		String name = width + "x" + height + " of type " + imageType;
+
+		// Runs of flat colour like a board's, broken up with noise so blocks do not all compress alike:
+		Random random = new Random(width * 31 + height);
+		BufferedImage image = new BufferedImage(width, height, imageType);
+		for (int y = 0; y < height; y++)
+		{
+			for (int x = 0; x < width; x++)
+				image.setRGB(x, y, (x / 5 + y) % 7 == 0 ? random.nextInt() : (x * 3 + y * 7) * 0x010101);
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (PngStreamWriter png = new PngStreamWriter(out, width, height, pool))
+		{
+			for (int top = 0, band = 0; top < height; band++)
+			{
+				int rows = Math.min(BAND_HEIGHTS[band % BAND_HEIGHTS.length], height - top);
+				png.writeRows(copyRows(image, top, rows));
+				top += rows;
+			}
+		}
+		byte[] file = out.toByteArray();
+
+		// ImageIO reads back the same pixels, 555 ones widened to 8 bits as the writer does:
+		BufferedImage read = ImageIO.read(new ByteArrayInputStream(file));
+		assertEquals(width, read.getWidth(), name);
+		assertEquals(height, read.getHeight(), name);
+		int[] expected = image.getRGB(0, 0, width, height, null, 0, width);
+		if (imageType == BufferedImage.TYPE_USHORT_555_RGB)
+		{
+			short[] data = ((DataBufferUShort) image.getRaster().getDataBuffer()).getData();
+			for (int i = 0; i < expected.length; i++)
+				expected[i] = 0xFF000000 | PngStreamWriter.expand5(data[i] >>> 10) << 16 | PngStreamWriter.expand5(data[i] >>> 5) << 8
+						| PngStreamWriter.expand5(data[i]);
+		}
+		assertArrayEquals(expected, read.getRGB(0, 0, width, height, null, 0, width), name);
+
+		// The IDAT chunks together are one zlib stream, which inflates to every filtered row, ends where it should and matches its checksum:
+		byte[] zlib = idat(file);
+		assertEquals(0x78, zlib[0] & 0xFF, name);
+		assertEquals(0, ((zlib[0] & 0xFF) << 8 | (zlib[1] & 0xFF)) % 31, name); // Header check bits
+		byte[] filtered = new byte[height * (1 + width * 3)];
+		Inflater inflater = new Inflater();
+		inflater.setInput(zlib);
+		int length = inflater.inflate(filtered);
+		assertTrue(inflater.finished(), name);
+		assertEquals(0, inflater.getRemaining(), name);
+		inflater.end();
+		assertEquals(filtered.length, length, name);
+
+		Adler32 adler = new Adler32();
+		adler.update(filtered);
+		int checksum = (zlib[zlib.length - 4] & 0xFF) << 24 | (zlib[zlib.length - 3] & 0xFF) << 16 | (zlib[zlib.length - 2] & 0xFF) << 8
+				| (zlib[zlib.length - 1] & 0xFF);
+		assertEquals((int) adler.getValue(), checksum, name);
+	}
+
+	/** Copies rows of an image into a band of their own, as StripRenderer hands them over; the writer reads a band's data from its start. **/
+	private static BufferedImage copyRows(BufferedImage image, int top, int rows)
+	{
+		BufferedImage band = new BufferedImage(image.getWidth(), rows, image.getType());
+		band.getRaster().setRect(0, -top, image.getRaster());
+		return band;
+	}
+
+	/** Concatenates the data of a PNG's IDAT chunks. **/
+	private static byte[] idat(byte[] file) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(file));
+		in.skipBytes(8); // Signature
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		while (in.available() > 0)
+		{
+			int length = in.readInt();
+			byte[] type = new byte[4];
+			in.readFully(type);
+			byte[] chunk = new byte[length];
+			in.readFully(chunk);
+			in.readInt(); // CRC, which ImageIO has already checked
+			if (new String(type, "US-ASCII").equals("IDAT"))
+				data.write(chunk);
+		}
+		return data.toByteArray();
+	}
+}
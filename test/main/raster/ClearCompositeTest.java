@@ -0,0 +1,132 @@
+package main.raster;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.geom.Arc2D;
+import java.awt.geom.Path2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+
+import org.junit.jupiter.api.Test;
+
+import main.Config;
+import main.Layer.Modifiers;
+import main.graphicalobjects.Aperture;
+
+/**
+ * Clear objects drawn over partly covered copper must remove exactly their own coverage from each pixel, whichever rasteriser draws them, so
+ * that clear objects of different kinds leave the same edges where they meet.
+ */
+class ClearCompositeTest
+{
+	private static final int SIZE = 64;
+
+	private interface Drawing
+	{
+		void draw(CoverageRaster raster, boolean clear);
+	}
+
+	/** Copper with an anti-aliased edge running steeply across the image, so the pixels along it are only partly covered. **/
+	private static final Drawing COPPER = new Drawing()
+	{
+		@Override
+		public void draw(CoverageRaster raster, boolean clear)
+		{
+			raster.fillRegion(polygon(0, 0, 40.3, 0, 20.7, SIZE, 0, SIZE), clear);
+		}
+	};
+
+	@Test
+	void clearTraceSubtractsFromCopper()
+	{
+		assertClearSubtracts(new Drawing()
+		{
+			@Override
+			public void draw(CoverageRaster raster, boolean clear)
+			{
+				raster.drawLine(5.3, 10.2, 58.6, 50.1, 6.4, clear);
+			}
+		});
+	}
+
+	@Test
+	void clearArcSubtractsFromCopper()
+	{
+		assertClearSubtracts(new Drawing()
+		{
+			@Override
+			public void draw(CoverageRaster raster, boolean clear)
+			{
+				raster.drawArc(new Arc2D.Double(8.4, 6.9, 44.5, 44.5, 20, 210, Arc2D.OPEN), 5.2, clear);
+			}
+		});
+	}
+
+	@Test
+	void clearRegionSubtractsFromCopper()
+	{
+		assertClearSubtracts(new Drawing()
+		{
+			@Override
+			public void draw(CoverageRaster raster, boolean clear)
+			{
+				raster.fillRegion(polygon(12.6, 8.1, 55.2, 20.4, 30.3, 57.7), clear);
+			}
+		});
+	}
+
+	@Test
+	void clearStampSubtractsFromCopper()
+	{
+		Aperture aperture = new Aperture.Circle(Modifiers.DEFAULT, (int) (23.7 / Config.nanosToPixels));
+		assertClearSubtracts(new Drawing()
+		{
+			@Override
+			public void draw(CoverageRaster raster, boolean clear)
+			{
+				assertTrue(raster.drawStamp(aperture, 24.3, 31.6, clear), "The aperture should be small enough to stamp");
+			}
+		});
+	}
+
+	private static void assertClearSubtracts(Drawing object)
+	{
+		byte[] copper = render(COPPER, null);
+		byte[] coverage = render(null, object);
+		byte[] cleared = render(COPPER, object);
+
+		byte[] expected = new byte[copper.length];
+		boolean partlyOverPartly = false;
+		for (int i = 0; i < expected.length; i++)
+		{
+			int d = copper[i] & 0xFF, c = coverage[i] & 0xFF;
+			expected[i] = (byte) Math.max(d - c, 0);
+			partlyOverPartly |= d > 0 && d < 255 && c > 0 && c < 255;
+		}
+		assertTrue(partlyOverPartly, "The object's edge should cross the copper's edge");
+		assertArrayEquals(expected, cleared);
+	}
+
+	/** Draws the background dark and then, if there is one, the object: clear over a background, or dark on its own. **/
+	private static byte[] render(Drawing background, Drawing object)
+	{
+		BufferedImage image = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_BYTE_GRAY);
+		CoverageRaster raster = new CoverageRaster(image, 0, SIZE, new ApertureStampCache(1000000L));
+		if (background != null)
+			background.draw(raster, false);
+		if (object != null)
+			object.draw(raster, background != null);
+		return ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+	}
+
+	private static Path2D polygon(double... points)
+	{
+		Path2D.Double path = new Path2D.Double();
+		path.moveTo(points[0], points[1]);
+		for (int i = 2; i < points.length; i += 2)
+			path.lineTo(points[i], points[i + 1]);
+		path.closePath();
+		return path;
+	}
+}
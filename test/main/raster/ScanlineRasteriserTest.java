@@ -0,0 +1,145 @@
+package main.raster;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.Shape;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Path2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * The scanline rasteriser's coverage should match an anti-aliased Java2D fill of the same non-zero outline to within Java2D's own sampling
+ * error. Marlin samples 8 sub-scanlines per pixel, so where an edge crosses a pixel its coverage can be out by half of one, 1/16 of the pixel;
+ * flattening arcs may move an edge by up to FLATNESS of a pixel besides. The exception is pixels where edges cross, in which area wound twice
+ * is counted twice before clamping (see ScanlineRasteriser).
+ */
+class ScanlineRasteriserTest
+{
+	private static final int SIZE = 96;
+	private static final int SAMPLING_ERROR = 255 / 16 + 1; // Half a Marlin sub-scanline, and rounding
+	private static final int FLATTENING_ERROR = (int) Math.ceil(ScanlineRasteriser.FLATNESS * 255);
+
+	@Test
+	void fillsConcaveRegion()
+	{
+		double[] points = { 10.3, 8.7, 85.1, 12.2, 47.6, 40.9, 80.4, 83.3, 14.8, 78.5, 33.2, 44.1 };
+		byte[] coverage = assertMatchesJava2D("Concave region", polygon(points), SAMPLING_ERROR, new boolean[SIZE * SIZE]);
+
+		// Without curves, the coverage adds up to the polygon's exact area:
+		double area = 0;
+		for (int i = 0; i < points.length; i += 2)
+			area += points[i] * points[(i + 3) % points.length] - points[(i + 2) % points.length] * points[i + 1];
+		assertEquals(Math.abs(area) / 2, total(coverage), 1, "Concave region area");
+	}
+
+	@Test
+	void fillsRegionWithHole()
+	{
+		// An outline wound the other way inside a circle, as Gerber regions cut out holes:
+		Path2D.Double region = new Path2D.Double();
+		region.append(new Ellipse2D.Double(6.2, 7.9, 82.5, 79.3), false);
+		region.append(polygon(30.4, 30.1, 30.9, 64.7, 66.3, 61.2, 62.8, 28.6), false);
+		byte[] coverage = assertMatchesJava2D("Region with hole", region, SAMPLING_ERROR + FLATTENING_ERROR, new boolean[SIZE * SIZE]);
+
+		assertEquals(0, coverage[47 * SIZE + 47] & 0xFF, "Inside the hole");
+		assertEquals(255, coverage[20 * SIZE + 47] & 0xFF, "Between the hole and the outside");
+	}
+
+	@Test
+	void fillsSelfOverlappingRegionNonZero()
+	{
+		// A pentagram, whose middle is wound twice and so is filled under the non-zero rule:
+		double[] points = new double[10];
+		for (int i = 0; i < 5; i++)
+		{
+			double angle = Math.PI / 2 + i * 4 * Math.PI / 5;
+			points[2 * i] = 48.3 + 40.2 * Math.cos(angle);
+			points[2 * i + 1] = 47.9 + 40.2 * Math.sin(angle);
+		}
+		byte[] coverage = assertMatchesJava2D("Self-overlapping region", polygon(points), SAMPLING_ERROR, crossings(points));
+
+		assertEquals(255, coverage[47 * SIZE + 48] & 0xFF, "Middle, wound twice");
+	}
+
+	/** Fills the shape both ways and checks every pixel not excluded is within the given difference. Returns the scanline coverage. **/
+	private static byte[] assertMatchesJava2D(String name, Shape shape, int maxDifference, boolean[] excluded)
+	{
+		byte[] coverage = new byte[SIZE * SIZE];
+		new ScanlineRasteriser(0, 0, SIZE, SIZE).fill(shape, new AffineTransform(), coverage, false);
+
+		BufferedImage image = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_BYTE_GRAY);
+		Graphics2D g = image.createGraphics();
+		g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		g.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, RenderingHints.VALUE_STROKE_PURE);
+		g.setColor(Color.WHITE);
+		g.fill(shape);
+		g.dispose();
+		byte[] java2D = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+
+		boolean partial = false;
+		for (int i = 0; i < coverage.length; i++)
+		{
+			int c = coverage[i] & 0xFF, j = java2D[i] & 0xFF;
+			partial |= c > 0 && c < 255;
+			if (!excluded[i])
+				assertTrue(Math.abs(c - j) <= maxDifference, name + " at (" + i % SIZE + ", " + i / SIZE + "): " + c + " against Java2D's " + j);
+		}
+		assertTrue(partial, name + " should have anti-aliased edges");
+		return coverage;
+	}
+
+	/** Marks the pixels around each point where two edges of a polygon cross. **/
+	private static boolean[] crossings(double... points)
+	{
+		boolean[] crossings = new boolean[SIZE * SIZE];
+		int n = points.length / 2;
+		for (int a = 0; a < n; a++)
+		{
+			for (int b = a + 1; b < n; b++)
+			{
+				double ax = points[2 * a], ay = points[2 * a + 1], adx = points[2 * ((a + 1) % n)] - ax, ady = points[2 * ((a + 1) % n) + 1] - ay;
+				double bx = points[2 * b], by = points[2 * b + 1], bdx = points[2 * ((b + 1) % n)] - bx, bdy = points[2 * ((b + 1) % n) + 1] - by;
+				double denominator = adx * bdy - ady * bdx;
+				if (denominator == 0)
+					continue;
+				double s = ((bx - ax) * bdy - (by - ay) * bdx) / denominator, t = ((bx - ax) * ady - (by - ay) * adx) / denominator;
+				if (s <= 0 || s >= 1 || t <= 0 || t >= 1) // Not a crossing, or only where neighbouring edges meet
+					continue;
+
+				int x = (int) Math.floor(ax + s * adx), y = (int) Math.floor(ay + s * ady);
+				for (int py = y - 1; py <= y + 1; py++)
+				{
+					for (int px = x - 1; px <= x + 1; px++)
+						crossings[py * SIZE + px] = true;
+				}
+			}
+		}
+		return crossings;
+	}
+
+	private static double total(byte[] coverage)
+	{
+		double total = 0;
+		for (byte c : coverage)
+			total += (c & 0xFF) / 255.0;
+		return total;
+	}
+
+	private static Path2D polygon(double... points)
+	{
+		Path2D.Double path = new Path2D.Double();
+		path.moveTo(points[0], points[1]);
+		for (int i = 2; i < points.length; i += 2)
+			path.lineTo(points[i], points[i + 1]);
+		path.closePath();
+		return path;
+	}
+}